@@ -0,0 +1,514 @@
+package net.filiph.georgeous;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+import net.filiph.georgeous.data.BitmapMemoryCache;
+import net.filiph.georgeous.data.ImageGetter;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.method.LinkMovementMethod;
+import android.text.style.ImageSpan;
+import android.text.style.QuoteSpan;
+import android.text.style.TypefaceSpan;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+/**
+ * Shows an article in a ListView, one block (a paragraph, a piece of code or a quote, or an image)
+ * per item. Only the blocks on screen are laid out, and only the images of the blocks on screen
+ * and around them are decoded, so a long article costs about as much to show as a short one.
+ *
+ * The article is the Spanned built by ArticleDisplayTask, with placeholders for the images, and
+ * split into blocks by split(). The images are decoded from the disk cache (in the background) as
+ * their blocks come near, and swapped in for the placeholders. Decoded images are kept in the
+ * BitmapMemoryCache, not here. Images that are still not cached once the article's images have
+ * been downloaded (e.g. ones missing from the image manifest) are downloaded one by one, also as
+ * their blocks come near.
+ *
+ * The adapter is also the ListView's OnScrollListener. It tracks which blocks are on screen, and
+ * logs the frame times of each scroll.
+ */
+public class ArticleBlockAdapter extends BaseAdapter implements AbsListView.OnScrollListener {
+    private static final String TAG = "ArticleBlockAdapter";
+
+    /**
+     * How many blocks before and after the ones on screen get their images decoded.
+     */
+    private static final int NEARBY_BLOCKS = 4;
+
+    /**
+     * Frames slower than this are counted as janky in the scroll log.
+     */
+    private static final long FRAME_BUDGET_MS = 16;
+
+    /**
+     * Runs the ImageDecodeTasks, one at a time. Not AsyncTask's serial executor, which is shared
+     * by the whole app.
+     */
+    private static final Executor sDecodeExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Splits the article into blocks: at each blank line (unless it's inside code or a quote), and
+     * around each image.
+     */
+    public static List<Block> split(Spanned content) {
+        List<Block> blocks = new ArrayList<Block>();
+        int length = content.length();
+        int blockStart = 0;
+        for (int i = 0; i < length; i++) {
+            char c = content.charAt(i);
+            if (c == '\ufffc') {
+                ImageSpan[] images = content.getSpans(i, i + 1, ImageSpan.class);
+                if (images.length > 0) {
+                    addTextBlock(blocks, content, blockStart, i);
+                    blocks.add(new Block(i, i + 1, images[0].getSource()));
+                    blockStart = i + 1;
+                }
+            } else if (c == '\n' && i + 1 < length && content.charAt(i + 1) == '\n') {
+                int end = i + 2;
+                while (end < length && content.charAt(end) == '\n') {
+                    end++;
+                }
+                if (!isInsideBlock(content, i, end, TypefaceSpan.class)
+                        && !isInsideBlock(content, i, end, QuoteSpan.class)) {
+                    addTextBlock(blocks, content, blockStart, i);
+                    blockStart = end;
+                }
+                i = end - 1;
+            }
+        }
+        addTextBlock(blocks, content, blockStart, length);
+        return blocks;
+    }
+
+    /**
+     * Adds the text between start and end as a block, without the whitespace around it (except
+     * for the indentation of code). Nothing is added if there is only whitespace.
+     */
+    private static void addTextBlock(List<Block> blocks, Spanned content, int start, int end) {
+        while (end > start && Character.isWhitespace(content.charAt(end - 1))) {
+            end--;
+        }
+        while (start < end && content.charAt(start) == '\n') {
+            start++;
+        }
+        if (start < end && !isInsideBlock(content, start, start + 1, TypefaceSpan.class)) {
+            while (start < end && Character.isWhitespace(content.charAt(start))) {
+                start++;
+            }
+        }
+        if (start < end) {
+            blocks.add(new Block(start, end, null));
+        }
+    }
+
+    /**
+     * Returns true if a span of the type covers the text from start to end, and more on both
+     * sides (or at the start of the text).
+     */
+    private static boolean isInsideBlock(Spanned content, int start, int end, Class<?> type) {
+        for (Object span : content.getSpans(start, end, type)) {
+            if (content.getSpanStart(span) <= start && content.getSpanEnd(span) >= end) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param listView
+     *            The ListView the adapter is for, to find the views of decoded images in.
+     * @param content
+     *            The article, with placeholders for the images.
+     * @param blocks
+     *            The blocks of the article, see split().
+     * @param metrics
+     *            The DisplayMetrics to size the images with. The width is the width of the text.
+     */
+    public ArticleBlockAdapter(Context context, ListView listView, Spanned content,
+            List<Block> blocks, DisplayMetrics metrics) {
+        mContext = context.getApplicationContext();
+        mInflater = LayoutInflater.from(context);
+        mListView = listView;
+        mContent = content;
+        mBlocks = blocks;
+        mMetrics = metrics;
+        mMemoryCache = BitmapMemoryCache.getInstance(context);
+    }
+
+    private final Context mContext;
+    private final LayoutInflater mInflater;
+    private final ListView mListView;
+    private final Spanned mContent;
+    private final List<Block> mBlocks;
+    private final DisplayMetrics mMetrics;
+    private final BitmapMemoryCache mMemoryCache;
+
+    /**
+     * Decodes the images from the caches. Only used by ImageDecodeTasks, which run one at a time.
+     */
+    private ImageGetter mImageGetter;
+
+    /**
+     * Images being decoded (or downloaded), decoded during the lifetime of the adapter (they may
+     * have been evicted from the memory cache since), and the ones that couldn't be had. By URL.
+     */
+    private final Set<String> mDecoding = new HashSet<String>();
+    private final Set<String> mDecoded = new HashSet<String>();
+    private final Set<String> mFailed = new HashSet<String>();
+
+    /**
+     * Set once the images have been downloaded to the disk cache (see onImagesDownloaded()).
+     * Until then, only the images already in the cache are decoded, and the others are left to
+     * that download. After it, they are downloaded by ImageFetchTasks.
+     */
+    private volatile boolean mImagesDownloaded = false;
+
+    /**
+     * The blocks on screen, from the last onScroll(). Read by the ImageDecodeTasks.
+     */
+    private volatile int mFirstVisibleBlock = 0;
+    private volatile int mLastVisibleBlock = 0;
+
+    /**
+     * Number of getView() calls (each of them lays out a block), for measuring.
+     */
+    private int mBindCount = 0;
+
+    private boolean mScrolling = false;
+    private long mLastFrameTime;
+    private int mFrames;
+    private long mFrameTimeTotal;
+    private long mWorstFrameTime;
+    private int mSlowFrames;
+
+    @Override
+    public int getCount() {
+        return mBlocks.size();
+    }
+
+    @Override
+    public Block getItem(int position) {
+        return mBlocks.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public boolean areAllItemsEnabled() {
+        return false;
+    }
+
+    @Override
+    public boolean isEnabled(int position) {
+        // The blocks aren't list items to select. Links in them still work.
+        return false;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) convertView;
+        if (view == null) {
+            view = (TextView) mInflater.inflate(R.layout.article_block, parent, false);
+            view.setMovementMethod(LinkMovementMethod.getInstance());
+        }
+        mBindCount += 1;
+
+        Block block = mBlocks.get(position);
+        Bitmap bitmap = null;
+        if (block.source != null && mDecoded.contains(block.source)) {
+            bitmap = mMemoryCache.get(block.source, mMetrics.widthPixels);
+            if (bitmap == null) {
+                // Evicted since. Decode it again (below).
+                mDecoded.remove(block.source);
+            }
+        }
+
+        // Until onScroll() says otherwise, the block being laid out is on screen.
+        mFirstVisibleBlock = Math.min(mFirstVisibleBlock, position);
+        mLastVisibleBlock = Math.max(mLastVisibleBlock, position);
+        decodeImagesAround(position, position);
+
+        view.setTag(block.source);
+        if (bitmap != null) {
+            BitmapDrawable drawable = new BitmapDrawable(mContext.getResources(), bitmap);
+            ImageGetter.setBounds(drawable, mMetrics);
+            setImage(view, block.source, drawable);
+            return view;
+        }
+        CharSequence text = mContent.subSequence(block.start, block.end);
+        try {
+            view.setText(text);
+        } catch (IndexOutOfBoundsException e) {
+            // The JellyBeanSpanFixTextView fix doesn't work in all cases. Fall back to plain text.
+            view.setText(text.toString());
+            e.printStackTrace();
+        }
+        return view;
+    }
+
+    /**
+     * Returns the number of blocks laid out so far.
+     */
+    public int getBindCount() {
+        return mBindCount;
+    }
+
+    /**
+     * Returns how far the list is scrolled: the position of the first item on screen, plus the
+     * part of it scrolled past, relative to the number of items. 0f is top, 1f is bottom.
+     */
+    public float getRelativeScrollPosition() {
+        int count = mListView.getCount();
+        View first = mListView.getChildAt(0);
+        if (count == 0 || first == null) {
+            return 0f;
+        }
+        float scrolled = first.getHeight() == 0 ? 0f : -first.getTop() / (float) first.getHeight();
+        return (mListView.getFirstVisiblePosition() + scrolled) / count;
+    }
+
+    /**
+     * Scrolls to the position returned by getRelativeScrollPosition(). Must be called after the
+     * adapter is set, and is only accurate to the block until the list has been laid out.
+     */
+    public void setRelativeScrollPosition(final float relativePosition) {
+        final int count = mListView.getCount();
+        if (relativePosition <= 0f || count == 0) {
+            return;
+        }
+        float position = Math.min(relativePosition, 1f) * count;
+        final int index = Math.min((int) position, count - 1);
+        final float scrolled = position - index;
+        mListView.setSelection(index);
+        mListView.post(new Runnable() {
+            @Override
+            public void run() {
+                // Now that the block at index is laid out, we know its height.
+                View first = mListView.getChildAt(0);
+                if (first != null && mListView.getFirstVisiblePosition() == index) {
+                    mListView.setSelectionFromTop(index, -(int) (first.getHeight() * scrolled));
+                }
+            }
+        });
+    }
+
+    /**
+     * Called once the images of the article are in the disk cache (or couldn't be downloaded), or
+     * right away if the article has no image manifest to download. Decodes (or downloads) the
+     * images of the blocks on screen that had to wait for that.
+     */
+    public void onImagesDownloaded() {
+        mImagesDownloaded = true;
+        int headers = mListView.getHeaderViewsCount();
+        decodeImagesAround(mListView.getFirstVisiblePosition() - headers,
+                mListView.getLastVisiblePosition() - headers);
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+            int totalItemCount) {
+        int headers = mListView.getHeaderViewsCount();
+        mFirstVisibleBlock = firstVisibleItem - headers;
+        mLastVisibleBlock = firstVisibleItem + visibleItemCount - 1 - headers;
+
+        // While scrolling, the list is laid out (and this is called) once per frame.
+        if (mScrolling) {
+            long now = SystemClock.uptimeMillis();
+            long frameTime = now - mLastFrameTime;
+            mLastFrameTime = now;
+            mFrames += 1;
+            mFrameTimeTotal += frameTime;
+            mWorstFrameTime = Math.max(mWorstFrameTime, frameTime);
+            if (frameTime > FRAME_BUDGET_MS) {
+                mSlowFrames += 1;
+            }
+        }
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        boolean scrolling = scrollState != SCROLL_STATE_IDLE;
+        if (scrolling && !mScrolling) {
+            mLastFrameTime = SystemClock.uptimeMillis();
+            mFrames = 0;
+            mFrameTimeTotal = 0;
+            mWorstFrameTime = 0;
+            mSlowFrames = 0;
+        } else if (!scrolling && mScrolling && mFrames > 0) {
+            Log.v(TAG, "Scrolled " + mFrames + " frames of " + getCount() + " blocks: "
+                    + (mFrameTimeTotal / mFrames) + " ms average, " + mWorstFrameTime
+                    + " ms worst, " + mSlowFrames + " over " + FRAME_BUDGET_MS + " ms.");
+        }
+        mScrolling = scrolling;
+    }
+
+    /**
+     * Starts decoding the images of the blocks from first to last, and near them, that aren't
+     * decoded yet.
+     */
+    private void decodeImagesAround(int first, int last) {
+        int end = Math.min(last + NEARBY_BLOCKS, mBlocks.size() - 1);
+        for (int i = Math.max(first - NEARBY_BLOCKS, 0); i <= end; i++) {
+            String source = mBlocks.get(i).source;
+            if (source == null || mDecoding.contains(source) || mDecoded.contains(source)
+                    || mFailed.contains(source)) {
+                continue;
+            }
+            mDecoding.add(source);
+            new ImageDecodeTask(i, source).executeOnExecutor(sDecodeExecutor);
+        }
+    }
+
+    /**
+     * Puts the image in the views of the blocks on screen that show it, or records that it
+     * couldn't be had if drawable is null.
+     */
+    private void onImageDecoded(String source, Drawable drawable) {
+        mDecoding.remove(source);
+        if (drawable == null) {
+            mFailed.add(source);
+            return;
+        }
+        mDecoded.add(source);
+        for (int i = 0; i < mListView.getChildCount(); i++) {
+            View child = mListView.getChildAt(i);
+            if (source.equals(child.getTag())) {
+                setImage((TextView) child, source, drawable);
+            }
+        }
+    }
+
+    private boolean isNearScreen(int position) {
+        return position >= mFirstVisibleBlock - NEARBY_BLOCKS
+                && position <= mLastVisibleBlock + NEARBY_BLOCKS;
+    }
+
+    private static void setImage(TextView view, String source, Drawable drawable) {
+        SpannableString image = new SpannableString("\ufffc");
+        image.setSpan(new ImageSpan(drawable, source), 0, 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        view.setText(image);
+    }
+
+    /**
+     * A part of the article shown as one item of the list.
+     */
+    public static class Block {
+        public Block(int start, int end, String source) {
+            this.start = start;
+            this.end = end;
+            this.source = source;
+        }
+
+        /**
+         * Where the block is in the article.
+         */
+        public final int start;
+        public final int end;
+        /**
+         * The URL of the image, if the block is an image. Otherwise null.
+         */
+        public final String source;
+    }
+
+    /**
+     * Decodes an image of a block from the caches, unless the block is no longer near the screen
+     * by the time the task gets to run. The tasks run one at a time on sDecodeExecutor, so the
+     * images are decoded in the order they were asked for. They never download: one slow image
+     * would hold up all the others. An image that isn't cached is left to the article's image
+     * download, or once that is done, to an ImageFetchTask.
+     */
+    private class ImageDecodeTask extends AsyncTask<Void, Void, Drawable> {
+        public ImageDecodeTask(int position, String source) {
+            mPosition = position;
+            mSource = source;
+        }
+
+        private final int mPosition;
+        private final String mSource;
+
+        /**
+         * Set when the image wasn't decoded because it wasn't needed (yet), or isn't downloaded
+         * yet.
+         */
+        private boolean mSkipped = false;
+
+        @Override
+        protected Drawable doInBackground(Void... params) {
+            if (!isNearScreen(mPosition)) {
+                mSkipped = true;
+                return null;
+            }
+            if (mImageGetter == null) {
+                mImageGetter = new ImageGetter(mContext, mMetrics, false, mMemoryCache);
+            }
+            Drawable drawable = mImageGetter.getCachedDrawable(mSource);
+            if (drawable == null && !mImagesDownloaded) {
+                // Left to the download.
+                mSkipped = true;
+            }
+            return drawable;
+        }
+
+        @Override
+        protected void onPostExecute(Drawable drawable) {
+            if (drawable == null && mSkipped) {
+                mDecoding.remove(mSource);
+            } else if (drawable == null) {
+                // Stays in mDecoding until it's fetched.
+                new ImageFetchTask(mSource).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            } else {
+                onImageDecoded(mSource, drawable);
+            }
+        }
+    }
+
+    /**
+     * Downloads (and decodes) an image that wasn't in the cache after the article's images were
+     * downloaded, e.g. because it isn't in the image manifest. Runs in parallel with the other
+     * AsyncTasks.
+     */
+    private class ImageFetchTask extends AsyncTask<Void, Void, Drawable> {
+        public ImageFetchTask(String source) {
+            mSource = source;
+        }
+
+        private final String mSource;
+
+        @Override
+        protected Drawable doInBackground(Void... params) {
+            // An ImageGetter of its own: the fetches run at the same time.
+            ImageGetter imageGetter = new ImageGetter(mContext, mMetrics, false, mMemoryCache);
+            Drawable drawable = imageGetter.getDrawable(mSource);
+            // Like ImageDownloadTask, keeps the cache in bounds after adding to it.
+            imageGetter.manageSpace();
+            return drawable;
+        }
+
+        @Override
+        protected void onPostExecute(Drawable drawable) {
+            onImageDecoded(mSource, drawable);
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package net.filiph.georgeous;
 
+import java.util.List;
+
+import net.filiph.georgeous.data.ArticleImage;
 import net.filiph.georgeous.data.BlankImageGetter;
 import net.filiph.georgeous.data.FeedContract;
+import net.filiph.georgeous.data.HtmlConverter;
 import net.filiph.georgeous.data.ImageGetter;
-import net.filiph.georgeous.data.ImageGetterWithManageSpace;
-
-import org.xml.sax.XMLReader;
+import net.filiph.georgeous.data.RenderedArticleCache;
+import net.filiph.georgeous.data.RenderedContent;
 
 import android.app.Activity;
 import android.app.Fragment;
@@ -15,21 +18,22 @@ import android.content.Loader;
 import android.database.Cursor;
 import android.os.AsyncTask;
 import android.os.Bundle;
-import android.text.Editable;
-import android.text.Html;
-import android.text.method.LinkMovementMethod;
+import android.os.SystemClock;
+import android.text.Spanned;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.ListView;
 import android.widget.ProgressBar;
-import android.widget.ScrollView;
 import android.widget.TextView;
 
 /**
- * Fragment that contains the contents of an article. It uses TextView for showing the contents (as
- * opposed to WebView) - that would not be necessary, but it allows for more control.
+ * Fragment that contains the contents of an article. It uses TextViews for showing the contents (as
+ * opposed to WebView) - that would not be necessary, but it allows for more control. The article
+ * is split into blocks shown in a ListView (see ArticleBlockAdapter), so that a long article isn't
+ * laid out all at once.
  */
 public class ArticleDisplayFragment extends Fragment implements
         LoaderManager.LoaderCallbacks<Cursor> {
@@ -40,19 +44,30 @@ public class ArticleDisplayFragment extends Fragment implements
 
     private long mArticleId = -1;
 
-    private ScrollView mScrollView;
+    private ListView mListView;
+    private TextView mTitleView;
+
+    /**
+     * The adapter of the article shown, or null while there is none.
+     */
+    private ArticleBlockAdapter mAdapter;
+
     /**
      * Used to persist the relative scroll position of the article for when device orientation
-     * changes. 0f is top, 1f is bottom.
+     * changes. 0f is top, 1f is bottom. See ArticleBlockAdapter.getRelativeScrollPosition().
      */
     private float mYRelativePosition = 0f;
 
     /**
-     * The fragment is showing the current article in the first pass (usually without images). It is
-     * OK to scroll to a previously saved position automatically (user hasn't had the chance to
-     * scroll themselves yet).
+     * When the article was loaded from the database (SystemClock.uptimeMillis()), for measuring
+     * how long it takes to show it.
+     */
+    private long mLoadFinishedTime;
+
+    /**
+     * Thread CPU time (in ms) spent on showing the article since it was loaded.
      */
-    private boolean mFirstPass = true;
+    private long mShowCpuTime;
 
     private static ArticleShownListener sDummyCallbacks = new ArticleShownListener() {
 
@@ -72,15 +87,19 @@ public class ArticleDisplayFragment extends Fragment implements
 
     /**
      * Shows an article with the given id. The fragment uses a LoaderManager to fetch the article
-     * asynchronously, and then uses an AsyncTask to build the Spanned for the TextView.
+     * asynchronously, and then uses an AsyncTask to build the Spanned for the list.
      */
     public void loadArticle(long articleId) {
+        if (articleId != mArticleId) {
+            mYRelativePosition = 0f;
+        } else if (mAdapter != null) {
+            mYRelativePosition = mAdapter.getRelativeScrollPosition();
+        }
         mArticleId = articleId;
 
-        TextView titleView = (TextView) getActivity().findViewById(R.id.article_display_title);
-        TextView contentView = (TextView) getActivity().findViewById(R.id.article_content);
-        titleView.setText(R.string.empty);
-        contentView.setText(R.string.empty);
+        mTitleView.setText(R.string.empty);
+        mAdapter = null;
+        mListView.setAdapter(null);
         removeGeorgePlaceholder();
         ProgressBar progressCircle = (ProgressBar) getActivity().findViewById(R.id.progress_circle);
         progressCircle.setVisibility(View.VISIBLE);
@@ -123,7 +142,11 @@ public class ArticleDisplayFragment extends Fragment implements
         }
 
         View inflatedView = inflater.inflate(R.layout.display_article_fragment, container, false);
-        mScrollView = (ScrollView) inflatedView.findViewById(R.id.article_scroll_view);
+        mListView = (ListView) inflatedView.findViewById(R.id.article_blocks);
+        mTitleView =
+                (TextView) inflater.inflate(R.layout.article_display_title, mListView, false);
+        // Must be added before the adapter is set.
+        mListView.addHeaderView(mTitleView, null, false);
 
         return inflatedView;
     }
@@ -141,24 +164,23 @@ public class ArticleDisplayFragment extends Fragment implements
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        // This method is called by the LoaderManager, so this must be the first
-        // pass.
-        mFirstPass = true;
-
-        // If the user has scrolled already, it means there was time for getting
-        // images (maybe before an orientation change?). So let's not do the
-        // two-pass thing now and instead load both text and the images on the
-        // first pass.
-        boolean loadImagesOnFirstPass = mYRelativePosition != 0f;
-
-        // Use AsyncTask to parse the HTML content and add images.
-        new ArticleDisplayTask(mArticleId, loadImagesOnFirstPass).execute(data);
+        mLoadFinishedTime = SystemClock.uptimeMillis();
+        mShowCpuTime = 0;
+        if (mAdapter != null) {
+            // The article shown has changed. Keep the place in it.
+            mYRelativePosition = mAdapter.getRelativeScrollPosition();
+        }
+
+        // Use AsyncTask to build the content, and then get the images.
+        new ArticleDisplayTask(mArticleId).execute(data);
     }
 
     @Override
     public void onPause() {
         super.onPause();
-        mYRelativePosition = mScrollView.getScrollY() / mScrollView.getMaxScrollAmount();
+        if (mAdapter != null) {
+            mYRelativePosition = mAdapter.getRelativeScrollPosition();
+        }
     }
 
     @Override
@@ -198,16 +220,41 @@ public class ArticleDisplayFragment extends Fragment implements
         getActivity().findViewById(R.id.george_placeholder).setVisibility(View.GONE);
     }
 
+    /**
+     * Returns the DisplayMetrics to render the article with: the display's, with the width of the
+     * content when it's known.
+     */
+    private DisplayMetrics getContentMetrics(Activity activity) {
+        DisplayMetrics metrics = new DisplayMetrics();
+        activity.getWindowManager().getDefaultDisplay().getMetrics(metrics);
+        int contentWidth = getWidth();
+        if (contentWidth != 0) {
+            metrics.widthPixels = contentWidth;
+        }
+        return metrics;
+    }
+
     private int getWidth() {
-        TextView contentView = (TextView) getActivity().findViewById(R.id.article_content);
-        if (contentView == null) {
+        if (mListView == null || mListView.getWidth() == 0) {
             return 0;
         } else {
-            return contentView.getWidth() - contentView.getTotalPaddingLeft()
-                    - contentView.getTotalPaddingRight();
+            return mListView.getWidth() - mListView.getPaddingLeft()
+                    - mListView.getPaddingRight();
         }
     }
 
+    /**
+     * Logs how long it took to show the article since it was loaded, and what it cost. Called once
+     * the first screen of blocks is laid out.
+     */
+    private void logArticleShown(long articleId, boolean fromCache) {
+        Log.v(TAG, "Article " + articleId + " shown in "
+                + (SystemClock.uptimeMillis() - mLoadFinishedTime) + " ms, with " + mShowCpuTime
+                + " ms of CPU time and " + mAdapter.getBindCount() + " of "
+                + mAdapter.getCount() + " blocks laid out"
+                + (fromCache ? " (rendered before)." : "."));
+    }
+
     /**
      * Interface that must be implemented by the parent Activity. This allows the fragment to inform
      * the activity on the currently displayed article.
@@ -225,55 +272,54 @@ public class ArticleDisplayFragment extends Fragment implements
     }
 
     /**
-     * This AsyncTask is called after we load the article's contents from SQLite. Converting the
-     * HTML to a Spanned (for use in TextView) is quite an expensive task that would otherwise block
-     * the UI thread.
-     * 
-     * The task is ordinarily called in two passes. First, we show the text of the article (which is
-     * guaranteed to be accessible offline, i.e. fast) so that user has almost immediately something
-     * to read.
+     * This AsyncTask is called after we load the article's contents from SQLite. Building the
+     * Spanned from the stored RenderedContent, and splitting it into blocks, would otherwise block
+     * the UI thread. Articles not converted yet (see FeedContract.KEY_RENDERED) are converted from
+     * their HTML here, which is more expensive.
      * 
-     * Next, we call the ArticleDisplay Task again (from within its own onPostExecute method) so
-     * that it can load the images.
+     * The images start out as blank placeholders, so that user has almost immediately something to
+     * read. The ArticleBlockAdapter decodes them as their blocks come near, and an
+     * ImageDownloadTask gets the ones that aren't cached yet. When the article is shown again, it
+     * is taken from the RenderedArticleCache.
      */
-    private class ArticleDisplayTask extends AsyncTask<Cursor, Void, CharSequence[]> {
-        public ArticleDisplayTask(long articleId, boolean getImages) {
-            mGetImages = getImages;
+    private class ArticleDisplayTask extends
+            AsyncTask<Cursor, Void, List<ArticleBlockAdapter.Block>> {
+        public ArticleDisplayTask(long articleId) {
             title = null;
-            contentHtml = null;
-            mLoadingArticleId = articleId;
-        }
-
-        public ArticleDisplayTask(long articleId, boolean getImages, String title,
-                String contentHtml, String url) {
-            mGetImages = getImages;
-            this.title = title;
-            this.contentHtml = contentHtml;
-            this.url = url;
+            rendered = null;
             mLoadingArticleId = articleId;
         }
 
+        private String title;
         /**
-         * Whether to get images with the content. Default behaviour: first time around, don't get
-         * images (so we have a fast display of text), then immediately after showing text go back
-         * and try to bring all the images, too.
+         * The stored RenderedContent, or null if the article hasn't been converted yet.
          */
-        private final boolean mGetImages;
-        private String title;
-        private String contentHtml;
+        private byte[] rendered;
         private String url;
+        private long updatedTimestamp;
 
         private final long mLoadingArticleId;
 
+        private List<ArticleImage> mImages;
+        private DisplayMetrics mMetrics;
+        private Spanned mContent;
+        private long mCpuTime;
+
+        /**
+         * Set when the content was found in the RenderedArticleCache.
+         */
+        private boolean mFromCache = false;
+
         @Override
-        protected CharSequence[] doInBackground(Cursor... params) {
+        protected List<ArticleBlockAdapter.Block> doInBackground(Cursor... params) {
             Activity activity = getActivity();
             if (activity == null) {
                 this.cancel(true);
                 return null;
             }
 
-            if (title == null || contentHtml == null || url == null) {
+            long cpuStart = SystemClock.currentThreadTimeMillis();
+            if (title == null || url == null) {
                 assert (params != null);
                 assert (params.length == 1);
                 Cursor data = params[0];
@@ -285,126 +331,154 @@ public class ArticleDisplayFragment extends Fragment implements
 
                 if (data.moveToFirst()) {
                     title = data.getString(data.getColumnIndexOrThrow(FeedContract.KEY_TITLE));
-                    contentHtml =
-                            data.getString(data.getColumnIndexOrThrow(FeedContract.KEY_CONTENT));
+                    rendered =
+                            data.getBlob(data.getColumnIndexOrThrow(FeedContract.KEY_RENDERED));
                     url =
                             data.getString(data
                                     .getColumnIndexOrThrow(FeedContract.KEY_CANONICAL_URL));
+                    updatedTimestamp =
+                            data.getLong(data
+                                    .getColumnIndexOrThrow(FeedContract.KEY_UPDATED_TIMESTAMP));
                 }
 
-                if (title == null || contentHtml == null) {
+                if (title == null) {
                     throw new IllegalStateException(
                             "The cursor received article with null contents.");
                 }
                 data.close();
             }
 
-            DisplayMetrics metrics = new DisplayMetrics();
-            activity.getWindowManager().getDefaultDisplay().getMetrics(metrics);
-            int contentWidth = getWidth();
-            if (contentWidth != 0) {
-                metrics.widthPixels = getWidth();
-            }
-            ImageGetterWithManageSpace imgGetter = null;
-            if (mGetImages) {
-                imgGetter =
-                        new ImageGetter(getActivity().getExternalCacheDir(), getResources(),
-                                metrics, false);
+            mMetrics = getContentMetrics(activity);
+            int contentWidth = mMetrics.widthPixels;
+            mImages =
+                    FeedContract.getArticleImages(activity.getContentResolver(),
+                            mLoadingArticleId);
+            RenderedArticleCache renderedCache = RenderedArticleCache.getInstance(activity);
+            CharSequence cached =
+                    renderedCache.get(mLoadingArticleId, updatedTimestamp, contentWidth);
+            Log.v(TAG, renderedCache.toString());
+            if (cached != null) {
+                mFromCache = true;
+                mContent = (Spanned) cached;
             } else {
-                imgGetter = new BlankImageGetter(getResources(), metrics);
-            }
-            // Next is the expensive part
-            CharSequence content =
-                    Html.fromHtml(contentHtml, imgGetter, new IgnoreStyleTagHandler());
-            imgGetter.manageSpace();
-
-            return new CharSequence[] { title, content };
-        }
-
-        private class IgnoreStyleTagHandler implements Html.TagHandler {
-            int startStyle = -1;
-
-            @Override
-            public void
-                    handleTag(boolean opening, String tag, Editable output, XMLReader xmlReader) {
-                if (tag.equalsIgnoreCase("style")) {
-                    if (opening) {
-                        Log.d(TAG, "Encountered opening <style> tag.");
-                        int len = output.length();
-                        // Mark start of <style>.
-                        startStyle = len;
-                        // output.setSpan(new StrikethroughSpan(), len, len,
-                        // Spannable.SPAN_MARK_MARK);
-                    } else {
-                        Log.d(TAG, "Encountered closing </style> tag.");
-                        if (startStyle != -1) {
-                            output.delete(startStyle, output.length());
-                            startStyle = -1;
-                        }
+                RenderedContent renderedContent = RenderedContent.decode(rendered);
+                if (renderedContent == null) {
+                    // Stored before the rendered column existed, or by an older HtmlConverter.
+                    // This is the expensive part, so the result is stored for next time.
+                    String contentHtml =
+                            FeedContract.getArticleContent(activity.getContentResolver(),
+                                    mLoadingArticleId);
+                    if (contentHtml == null) {
+                        throw new IllegalStateException(
+                                "The cursor received article with null contents.");
                     }
+                    renderedContent = HtmlConverter.parse(contentHtml);
+                    FeedContract.setRenderedContent(activity.getContentResolver(),
+                            mLoadingArticleId, renderedContent.encode());
+                }
+                BlankImageGetter imgGetter =
+                        new BlankImageGetter(getResources(), mMetrics, mImages);
+                mContent = renderedContent.toSpanned(imgGetter);
+                // Placeholders of unknown size will be worth rendering again, once the images
+                // have been downloaded and measured.
+                if (!imgGetter.hasUnknownSizes()) {
+                    renderedCache.put(mLoadingArticleId, updatedTimestamp, contentWidth,
+                            mContent);
                 }
             }
+            List<ArticleBlockAdapter.Block> blocks = ArticleBlockAdapter.split(mContent);
+
+            mCpuTime = SystemClock.currentThreadTimeMillis() - cpuStart;
+            return blocks;
         }
 
         @Override
-        protected void onPostExecute(CharSequence[] strings) {
+        protected void onPostExecute(List<ArticleBlockAdapter.Block> blocks) {
             Activity activity = getActivity();
+            mShowCpuTime += mCpuTime;
             if (activity == null || mLoadingArticleId != mArticleId) {
                 // We fetched the article but the user is already elsewhere. :(
                 // Some manners!
                 return;
             }
-            if (strings != null && strings.length >= 2) {
-                CharSequence title = strings[0];
-                CharSequence content = strings[1];
-                TextView titleView =
-                        (TextView) getActivity().findViewById(R.id.article_display_title);
-                JellyBeanSpanFixTextView contentView =
-                        (JellyBeanSpanFixTextView) getActivity().findViewById(R.id.article_content);
-                ProgressBar progressCircle =
-                        (ProgressBar) getActivity().findViewById(R.id.progress_circle);
-                if (titleView != null && contentView != null && progressCircle != null) {
-                    titleView.setText(title);
-                    contentView.setMovementMethod(LinkMovementMethod.getInstance());
-                    try {
-                        contentView.setText(content);
-                    } catch (IndexOutOfBoundsException e) {
-                        // The JellyBeanSpanFixTextView fix doesn't work in all
-                        // cases. Fall back to plain text.
-                        contentView.setText(content.toString());
-                        // TODO: Apologize to the user?
-                        e.printStackTrace();
-                    }
-                    progressCircle.setVisibility(View.GONE);
-                    if (mFirstPass) {
-                        mScrollView.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                // Good enough for now. TODO: better.
-                                int pos =
-                                        (int) (mScrollView.getMaxScrollAmount() * mYRelativePosition);
-                                mScrollView.setScrollY(pos);
-                            }
-                        });
-                    }
+            if (blocks == null) {
+                Log.w(TAG, "Bad call to onPostExecute.");
+                return;
+            }
+            ProgressBar progressCircle =
+                    (ProgressBar) activity.findViewById(R.id.progress_circle);
+            long cpuStart = SystemClock.currentThreadTimeMillis();
+            mTitleView.setText(title);
+            mAdapter = new ArticleBlockAdapter(activity, mListView, mContent, blocks, mMetrics);
+            mListView.setAdapter(mAdapter);
+            mListView.setOnScrollListener(mAdapter);
+            mAdapter.setRelativeScrollPosition(mYRelativePosition);
+            if (progressCircle != null) {
+                progressCircle.setVisibility(View.GONE);
+            }
+            mShowCpuTime += SystemClock.currentThreadTimeMillis() - cpuStart;
 
-                    if (!mGetImages) {
-                        // Go again, this time with images.
-                        mFirstPass = false;
-                        new ArticleDisplayTask(mLoadingArticleId, true, this.title,
-                                this.contentHtml, this.url).execute();
-                    } else {
-                        // This was the final pass.
-                        mCallbacks.onArticleShow(url);
+            if (!mImages.isEmpty()) {
+                // Downloads in parallel with the decoding (which runs on an executor of its own).
+                new ImageDownloadTask(mAdapter, mMetrics, mImages).executeOnExecutor(
+                        AsyncTask.THREAD_POOL_EXECUTOR);
+            } else {
+                // No manifest (or no images) to download. The adapter gets any images that aren't
+                // cached itself.
+                mAdapter.onImagesDownloaded();
+            }
+
+            final ArticleBlockAdapter adapter = mAdapter;
+            final boolean fromCache = mFromCache;
+            mListView.post(new Runnable() {
+                @Override
+                public void run() {
+                    // The first screen of blocks has been laid out by now.
+                    if (adapter == mAdapter) {
+                        logArticleShown(mLoadingArticleId, fromCache);
                     }
-                } else {
-                    // We fetched the article but the user is already elsewhere.
-                    // :( Some manners!
                 }
-            } else {
-                Log.w(TAG, "Bad call to onPostExecute.");
+            });
+            mCallbacks.onArticleShow(url);
+        }
+
+    }
+
+    /**
+     * Downloads the images of the article shown into the disk cache, all at once, and then lets
+     * the ArticleBlockAdapter decode the ones it had to skip. Images are only decoded by the
+     * adapter, as their blocks come near.
+     */
+    private class ImageDownloadTask extends AsyncTask<Void, Void, Void> {
+        public ImageDownloadTask(ArticleBlockAdapter adapter, DisplayMetrics metrics,
+                List<ArticleImage> images) {
+            mBlockAdapter = adapter;
+            mMetrics = metrics;
+            mImages = images;
+        }
+
+        private final ArticleBlockAdapter mBlockAdapter;
+        private final DisplayMetrics mMetrics;
+        private final List<ArticleImage> mImages;
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            Activity activity = getActivity();
+            if (activity == null) {
+                return null;
             }
+            ImageGetter imageGetter = new ImageGetter(activity, mMetrics, false, null);
+            imageGetter.prefetch(mImages);
+            // Showing an article is the other place images get into the cache.
+            imageGetter.manageSpace();
+            return null;
         }
 
+        @Override
+        protected void onPostExecute(Void result) {
+            if (mBlockAdapter == mAdapter) {
+                mBlockAdapter.onImagesDownloaded();
+            }
+        }
     }
 }
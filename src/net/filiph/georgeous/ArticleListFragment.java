@@ -4,7 +4,6 @@ import net.filiph.georgeous.data.FeedContract;
 import android.app.Activity;
 import android.app.ListFragment;
 import android.app.LoaderManager;
-import android.content.CursorLoader;
 import android.content.Loader;
 import android.database.Cursor;
 import android.os.Bundle;
@@ -88,8 +87,7 @@ public class ArticleListFragment extends ListFragment implements
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         Log.v(TAG, "onCreateLoader called");
-        return new CursorLoader(getActivity(), FeedContract.ARTICLES_URI, null, null, null,
-                FeedContract.KEY_PUBLISHED_TIMESTAMP + " DESC");
+        return FeedContract.getArticleListLoader(getActivity());
     }
 
     @Override
@@ -10,6 +10,11 @@ public class Constants {
     public static final String GET_ARTICLES_INTENT = "net.filiph.georgeous.GET_ARTICLES";
     public static final String GET_ARTICLE_IMAGES_INTENT =
             "net.filiph.georgeous.GET_ARTICLE_IMAGES";
+    /**
+     * Sent by DbHelper after a database upgrade, so that the data in the new columns can be filled
+     * in the background.
+     */
+    public static final String BACKFILL_INTENT = "net.filiph.georgeous.BACKFILL";
 
     public static final String FEED_RESULT_CODE = "net.filiph.georgeous.FEED_RESULT_CODE";
 
@@ -20,5 +25,14 @@ public class Constants {
     public static final int FEED_RESULT_OTHER_ERROR = 7;
 
     public static final String ARTICLE_ID_EXTRA = "net.filiph.georgeous.ARTICLE_ID";
-    public static final String ARTICLE_CONTENT_EXTRA = "net.filiph.georgeous.ARTICLE_CONTENT";
+    /**
+     * Long extra for GET_ARTICLES_INTENT with the _id of the feed to refresh. All subscribed feeds
+     * are refreshed when it is missing.
+     */
+    public static final String FEED_ID_EXTRA = "net.filiph.georgeous.FEED_ID";
+    /**
+     * Boolean extra for GET_ARTICLES_INTENT. When true, the whole feed is read even if it only
+     * contains articles we already have.
+     */
+    public static final String FULL_SYNC_EXTRA = "net.filiph.georgeous.FULL_SYNC";
 }
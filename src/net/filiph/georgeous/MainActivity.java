@@ -1,5 +1,6 @@
 package net.filiph.georgeous;
 
+import net.filiph.georgeous.background.FeedValidators;
 import net.filiph.georgeous.background.ReaderFeedService;
 import net.filiph.georgeous.data.FeedContract;
 import android.animation.Animator;
@@ -137,6 +138,7 @@ public class MainActivity extends Activity implements ArticleListFragment.Callba
     public boolean onMenuClearClick(MenuItem item) {
         ContentResolver cr = getContentResolver();
         cr.delete(FeedContract.ARTICLES_URI, null, null);
+        FeedValidators.clearAll(this);
 
         mPrefs.edit().putBoolean(DATA_ALREADY_LOADED_FOR_FIRST_TIME, false)
                 .putLong(LAST_CHECK_FINISHED_TIME, 0).commit();
@@ -2,12 +2,12 @@ package net.filiph.georgeous.background;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.TimeZone;
 
 import net.filiph.georgeous.data.Article;
 
@@ -17,7 +17,8 @@ import org.xmlpull.v1.XmlPullParserException;
 import android.util.Xml;
 
 /**
- * Parses an Atom XML from the provided InputStream. Returns a List of Articles.
+ * Parses an Atom XML from the provided InputStream. Each entry is handed to an {@link EntrySink}
+ * as soon as it is read, or, for convenience, collected into a List of Articles.
  * 
  * Parser appropriated from http://developer.android.com/training/basics/network-ops/xml.html.
  */
@@ -25,19 +26,14 @@ public class AtomParser {
     // We don't use namespaces
     private static final String ns = null;
 
-    /**
-     * Atom feeds should use the RFC 3339 format for their timestamps. But because they sometimes
-     * don't, and because we don't really care about the exact time, we use only the date
-     * information.
-     */
-    final static String sFormat = "yyyy-MM-dd";
-
-    // Because the Android blog is mostly updated from the US. We care less what
-    // the date was in the user's locale than what the date was for the author.
-    final static SimpleDateFormat sInputParser = new SimpleDateFormat(sFormat, Locale.US);
-
-    // Example output: "May 21".
+    // Example output: "May 21". The format's time zone is UTC, but it is only
+    // ever given the author's local time (see buildHumanReadableInfoString()).
+    // Feeds are parsed in parallel, and SimpleDateFormat is not thread-safe, so
+    // it is only used while holding its lock.
     final static SimpleDateFormat sHumanOutputParser = new SimpleDateFormat("MMMM d", Locale.US);
+    static {
+        sHumanOutputParser.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
 
     private static final String POSTED_BY_STRING = "Posted by";
 
@@ -47,13 +43,38 @@ public class AtomParser {
     @SuppressWarnings("unused")
     private static final String TAG = "AtomParser";
 
+    /**
+     * Parses the whole feed and returns all its entries. Note that this keeps every article
+     * (including its content) in memory - prefer {@link #parse(InputStream, EntrySink)} for big
+     * feeds.
+     */
     public static List<Article> parse(InputStream in) throws XmlPullParserException, IOException {
+        final List<Article> entries = new ArrayList<Article>();
+        parse(in, new EntrySink() {
+            @Override
+            public boolean onEntry(Article article) {
+                entries.add(article);
+                return true;
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * Parses the feed and hands every entry to the sink as soon as it is read. The parser doesn't
+     * hold on to the entries, so memory use is bounded by the size of a single entry.
+     * 
+     * When the sink asks to stop, the rest of the document is left unread and the stream is closed
+     * right away.
+     */
+    public static void parse(InputStream in, EntrySink sink) throws XmlPullParserException,
+            IOException {
         try {
             XmlPullParser parser = Xml.newPullParser();
             parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
             parser.setInput(in, null);
             parser.nextTag();
-            return readFeed(parser);
+            readFeed(parser, sink);
         } finally {
             in.close();
         }
@@ -62,15 +83,22 @@ public class AtomParser {
     /**
      * This creates the string that we use in ArticleListView alongside the article title. Ideally,
      * it looks something like: "May 27, Reto Meier".
+     * 
+     * @param publishedOffset
+     *            The offset from UTC of the published timestamp, in milliseconds. We care less what
+     *            the date was in the user's locale than what the date was for the author.
      */
-    private static String buildHumanReadableInfoString(Article article) {
+    private static String buildHumanReadableInfoString(Article article, int publishedOffset) {
         StringBuilder strBuilder = new StringBuilder();
 
-        Date date = getPublishedDate(article);
-        if (date != null) {
-            strBuilder.append(sHumanOutputParser.format(date));
+        boolean hasDate = article.published_timestamp != Article.UNKNOWN_TIMESTAMP;
+        if (hasDate) {
+            Date authorsLocalTime = new Date(article.published_timestamp + publishedOffset);
+            synchronized (sHumanOutputParser) {
+                strBuilder.append(sHumanOutputParser.format(authorsLocalTime));
+            }
         }
-        if (date != null && article.author_guess != null) {
+        if (hasDate && article.author_guess != null) {
             strBuilder.append(", ");
         }
         if (article.author_guess != null) {
@@ -80,18 +108,6 @@ public class AtomParser {
         return strBuilder.toString();
     }
 
-    private static Date getPublishedDate(Article article) {
-        Date date = null;
-        try {
-            date =
-                    sInputParser.parse(article.published_timestamp.trim().substring(0,
-                            sFormat.length()));
-        } catch (ParseException e) {
-            e.printStackTrace();
-        }
-        return date;
-    }
-
     /**
      * This tries to guess the author's name from the "Posted by ___" string at the beginning of
      * almost every Android blog post. Obviously, this is a big hack (if there was a change in the
@@ -141,6 +157,7 @@ public class AtomParser {
             IOException {
         parser.require(XmlPullParser.START_TAG, ns, "entry");
         Article article = new Article();
+        int publishedOffset = 0;
         // TODO: categories
         while (parser.next() != XmlPullParser.END_TAG) {
             if (parser.getEventType() != XmlPullParser.START_TAG) {
@@ -153,9 +170,20 @@ public class AtomParser {
                 article.content = readTagContent(parser, "content");
                 article.author_guess = guessAuthor(article.content);
             } else if (name.equals("published")) {
-                article.published_timestamp = readTagContent(parser, "published");
+                String published = readTagContent(parser, "published");
+                try {
+                    article.published_timestamp = Rfc3339Parser.parseMillis(published);
+                    publishedOffset = Rfc3339Parser.parseOffsetMillis(published);
+                } catch (IllegalArgumentException e) {
+                    e.printStackTrace();
+                }
             } else if (name.equals("updated")) {
-                article.updated_timestamp = readTagContent(parser, "updated");
+                try {
+                    article.updated_timestamp =
+                            Rfc3339Parser.parseMillis(readTagContent(parser, "updated"));
+                } catch (IllegalArgumentException e) {
+                    e.printStackTrace();
+                }
             } else if (name.equals("media:thumbnail")) {
                 article.thumbnail_url = readTagAttribute(parser, "media:thumbnail", "url");
             } else if (name.equals("link")) {
@@ -173,14 +201,12 @@ public class AtomParser {
             }
         }
 
-        article.human_info = buildHumanReadableInfoString(article);
+        article.human_info = buildHumanReadableInfoString(article, publishedOffset);
         return article;
     }
 
-    private static List<Article> readFeed(XmlPullParser parser) throws XmlPullParserException,
-            IOException {
-        List<Article> entries = new ArrayList<Article>();
-
+    private static void readFeed(XmlPullParser parser, EntrySink sink)
+            throws XmlPullParserException, IOException {
         parser.require(XmlPullParser.START_TAG, ns, "feed");
         while (parser.next() != XmlPullParser.END_TAG) {
             if (parser.getEventType() != XmlPullParser.START_TAG) {
@@ -189,12 +215,13 @@ public class AtomParser {
             String name = parser.getName();
             // Starts by looking for the entry tag
             if (name.equals("entry")) {
-                entries.add(readEntry(parser));
+                if (!sink.onEntry(readEntry(parser))) {
+                    return;
+                }
             } else {
                 skip(parser);
             }
         }
-        return entries;
     }
 
     // Processes link tag in the feed and, if it is 'link rel', saves the href.
@@ -266,4 +293,16 @@ public class AtomParser {
             }
         }
     }
+
+    /**
+     * Receives the feed's entries one by one, in document order, while the feed is being parsed.
+     */
+    public interface EntrySink {
+        /**
+         * Called for every entry in the feed.
+         * 
+         * @return True to continue parsing, false to stop reading the feed.
+         */
+        public boolean onEntry(Article article);
+    }
 }
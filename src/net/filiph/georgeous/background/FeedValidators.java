@@ -0,0 +1,80 @@
+package net.filiph.georgeous.background;
+
+import java.net.HttpURLConnection;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * The HTTP cache validators (ETag and Last-Modified) of a feed. They are persisted per feed URL so
+ * that the next fetch of the same feed can be made conditional and the server can answer with a
+ * cheap "304 Not Modified" instead of the whole document.
+ */
+public class FeedValidators {
+    private static final String PREFS_NAME = "feed_validators";
+    private static final String ETAG_PREFIX = "etag:";
+    private static final String LAST_MODIFIED_PREFIX = "last_modified:";
+
+    private String mETag;
+    private String mLastModified;
+
+    private FeedValidators(String eTag, String lastModified) {
+        mETag = eTag;
+        mLastModified = lastModified;
+    }
+
+    /**
+     * Loads the validators we saved for the given feed URL the last time it was fetched. The
+     * returned object is never null, although its values might be.
+     */
+    public static FeedValidators load(Context context, String feedUrl) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return new FeedValidators(prefs.getString(ETAG_PREFIX + feedUrl, null), prefs.getString(
+                LAST_MODIFIED_PREFIX + feedUrl, null));
+    }
+
+    /**
+     * Adds If-None-Match and If-Modified-Since headers to the (not yet connected) request.
+     */
+    public void applyTo(HttpURLConnection urlConnection) {
+        if (mETag != null) {
+            urlConnection.setRequestProperty("If-None-Match", mETag);
+        }
+        if (mLastModified != null) {
+            urlConnection.setRequestProperty("If-Modified-Since", mLastModified);
+        }
+    }
+
+    /**
+     * Remembers the validators that came with a full (200) response. They are not persisted until
+     * {@link #save(Context, String)} is called, so that a failed parse or insert doesn't leave us
+     * with validators for content we never stored.
+     */
+    public void updateFrom(HttpURLConnection urlConnection) {
+        mETag = urlConnection.getHeaderField("ETag");
+        mLastModified = urlConnection.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * Forgets the validators of all feeds. This must be called whenever stored articles are thrown
+     * away, otherwise the server would keep telling us that we already have them.
+     */
+    public static void clearAll(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().clear().commit();
+    }
+
+    /**
+     * Forgets the validators of one feed, e.g. when it is unsubscribed and its articles are gone.
+     * Subscribing to it again then fetches the whole feed.
+     */
+    public static void clear(Context context, String feedUrl) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .remove(ETAG_PREFIX + feedUrl).remove(LAST_MODIFIED_PREFIX + feedUrl).commit();
+    }
+
+    public void save(Context context, String feedUrl) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putString(ETAG_PREFIX + feedUrl, mETag)
+                .putString(LAST_MODIFIED_PREFIX + feedUrl, mLastModified).commit();
+    }
+}
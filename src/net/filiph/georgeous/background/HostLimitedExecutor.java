@@ -0,0 +1,94 @@
+package net.filiph.georgeous.background;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs network tasks on the given Executor, but never more than a fixed number of them against the
+ * same host at a time. Tasks over the limit wait in a per-host queue (instead of blocking a worker
+ * thread), so tasks for other hosts are not held up by them.
+ */
+public class HostLimitedExecutor {
+    private final Executor mExecutor;
+    private final int mMaxTasksPerHost;
+
+    /**
+     * Number of tasks currently submitted to mExecutor, per host.
+     */
+    private final Map<String, Integer> mRunningTasks = new HashMap<String, Integer>();
+
+    /**
+     * Tasks waiting for a slot, per host.
+     */
+    private final Map<String, Queue<Runnable>> mWaitingTasks =
+            new HashMap<String, Queue<Runnable>>();
+
+    public HostLimitedExecutor(Executor executor, int maxTasksPerHost) {
+        mExecutor = executor;
+        mMaxTasksPerHost = maxTasksPerHost;
+    }
+
+    /**
+     * Runs the task as soon as there is a free slot for its host.
+     *
+     * @param host
+     *            The host the task will connect to. May be null if unknown.
+     */
+    public void execute(String host, Runnable task) {
+        final String key = host == null ? "" : host.toLowerCase(Locale.US);
+        synchronized (this) {
+            Integer running = mRunningTasks.get(key);
+            if (running != null && running >= mMaxTasksPerHost) {
+                Queue<Runnable> waiting = mWaitingTasks.get(key);
+                if (waiting == null) {
+                    waiting = new LinkedList<Runnable>();
+                    mWaitingTasks.put(key, waiting);
+                }
+                waiting.add(task);
+                return;
+            }
+            mRunningTasks.put(key, running == null ? 1 : running + 1);
+        }
+        submit(key, task);
+    }
+
+    /**
+     * Called when a task for the host has finished. Either hands the slot over to the next waiting
+     * task, or frees it.
+     */
+    private void onTaskFinished(String key) {
+        Runnable next;
+        synchronized (this) {
+            Queue<Runnable> waiting = mWaitingTasks.get(key);
+            next = waiting == null ? null : waiting.poll();
+            if (next == null) {
+                mWaitingTasks.remove(key);
+                int running = mRunningTasks.get(key) - 1;
+                if (running == 0) {
+                    mRunningTasks.remove(key);
+                } else {
+                    mRunningTasks.put(key, running);
+                }
+                return;
+            }
+        }
+        submit(key, next);
+    }
+
+    private void submit(final String key, final Runnable task) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    onTaskFinished(key);
+                }
+            }
+        });
+    }
+}
@@ -1,179 +1,370 @@
 package net.filiph.georgeous.background;
 
 import java.io.BufferedInputStream;
-import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import net.filiph.georgeous.Constants;
 import net.filiph.georgeous.data.Article;
+import net.filiph.georgeous.data.DbHelper;
 import net.filiph.georgeous.data.FeedContract;
+import net.filiph.georgeous.data.HtmlConverter;
 import net.filiph.georgeous.data.ImageGetter;
-import net.filiph.georgeous.data.ImageGetterWithManageSpace;
+import net.filiph.georgeous.data.RenderedContent;
 
 import org.xmlpull.v1.XmlPullParserException;
 
 import android.app.IntentService;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
-import android.net.Uri;
-import android.os.Environment;
 import android.support.v4.content.LocalBroadcastManager;
-import android.text.Html;
 import android.util.DisplayMetrics;
 import android.util.Log;
 
 /**
- * This is the background IntentService in charge of fetching the Atom feed, parsing it, and saving
- * the data in the SQLite database. It notifies the MainActivity on completion (success, failure, no
- * new articles).
+ * This is the background IntentService in charge of fetching the subscribed Atom feeds, parsing
+ * them, and saving the data in the SQLite database. It notifies the MainActivity on completion
+ * (success, failure, no new articles).
  */
 public class ReaderFeedService extends IntentService {
     private static final String TAG = "GeorgeousReaderFeedService";
 
+    private static final int MAX_ARTICLES_TO_PRELOAD = 5;
+
     /**
-     * The (hardcoded) url of the feed. TODO: make this a setting.
+     * Articles are inserted into the database in batches of this size, each batch in a single
+     * transaction.
      */
-    private static final String FEED_URL = "http://android-developers.blogspot.com/atom.xml";
+    private static final int INSERT_BATCH_SIZE = 25;
 
-    private static final int MAX_ARTICLES_TO_PRELOAD = 5;
+    /**
+     * How many feeds are fetched at the same time. Fetching is mostly waiting on the network, so
+     * this can be more than the number of cores.
+     */
+    private static final int MAX_PARALLEL_FEED_FETCHES = 8;
+
+    /**
+     * How many feeds are fetched from the same host at the same time. Many feeds live on the same
+     * host (e.g. blogspot.com) and we don't want to hammer it.
+     */
+    private static final int MAX_PARALLEL_FEED_FETCHES_PER_HOST = 2;
+
+    /**
+     * Internal result of fetchArticles(), meaning the feed was fetched and parsed.
+     */
+    private static final int FEED_PARSED = 0;
+
+    /**
+     * In an incremental sync, we stop reading the feed after this many consecutive entries that
+     * are already in the database, unchanged. Feeds are sorted newest-first, so everything after
+     * them is most likely known too.
+     */
+    private static final int KNOWN_ENTRIES_CUTOFF = 3;
+
+    /**
+     * Number of rows the backfill updates in one transaction. Small enough that the UI's queries
+     * don't wait long for the database in between.
+     */
+    private static final int BACKFILL_BATCH_SIZE = 100;
 
     public ReaderFeedService() {
         super("ReaderFeedIntentService");
     }
 
     /**
-     * Connects to the Internet, fetches the Atom feed, parses it, and returns the articles.
+     * Combines the results of two feeds into one result code for the whole refresh. New articles in
+     * any feed win, then "no new articles" (at least something worked), then the errors.
+     */
+    private static int combineFeedResults(int a, int b) {
+        if (a == Constants.FEED_RESULT_NEW_ARTICLES || b == Constants.FEED_RESULT_NEW_ARTICLES) {
+            return Constants.FEED_RESULT_NEW_ARTICLES;
+        }
+        if (a == Constants.FEED_RESULT_NO_NEW_ARTICLES
+                || b == Constants.FEED_RESULT_NO_NEW_ARTICLES) {
+            return Constants.FEED_RESULT_NO_NEW_ARTICLES;
+        }
+        return a;
+    }
+
+    private static String getHost(String urlString) {
+        try {
+            return new URL(urlString).getHost();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Connects to the Internet, fetches the Atom feed, and parses it, handing the articles to the
+     * sink as they are read.
+     * 
+     * The request is conditional on the given validators. When the server answers that the feed
+     * hasn't changed, nothing is parsed. On a full response, the validators are updated with the
+     * new values (but not saved).
+     * 
+     * @return FEED_PARSED if the feed was parsed, or one of the FEED_RESULT_ codes otherwise.
      */
-    private List<Article> fetchArticles(String urlString) {
-        List<Article> articles = null;
+    private int fetchArticles(String urlString, FeedValidators validators,
+            AtomParser.EntrySink sink) {
         try {
             URL url = new URL(urlString);
             HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
             urlConnection.setReadTimeout(10000 /* milliseconds */);
             urlConnection.setConnectTimeout(15000 /* milliseconds */);
             urlConnection.setRequestMethod("GET");
+            validators.applyTo(urlConnection);
             try {
+                if (urlConnection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    Log.v(TAG, "Feed not modified since last fetch.");
+                    return Constants.FEED_RESULT_NO_NEW_ARTICLES;
+                }
+                validators.updateFrom(urlConnection);
                 InputStream in = new BufferedInputStream(urlConnection.getInputStream());
-                articles = AtomParser.parse(in);
+                AtomParser.parse(in, sink);
             } finally {
                 urlConnection.disconnect();
             }
         } catch (MalformedURLException e) {
-            sendFeedResult(Constants.FEED_RESULT_OTHER_ERROR);
             e.printStackTrace();
-            return null;
+            return Constants.FEED_RESULT_OTHER_ERROR;
         } catch (IOException e) {
-            sendFeedResult(Constants.FEED_RESULT_NET_ERROR);
             e.printStackTrace();
-            return null;
+            return Constants.FEED_RESULT_NET_ERROR;
         } catch (XmlPullParserException e) {
             Log.e(TAG, "The received XML was malformed or there was an error with parsing it.");
-            sendFeedResult(Constants.FEED_RESULT_OTHER_ERROR);
             e.printStackTrace();
-            return null;
+            return Constants.FEED_RESULT_OTHER_ERROR;
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Cannot open database.");
+            e.printStackTrace();
+            return Constants.FEED_RESULT_DATABASE_ERROR;
         } catch (SecurityException e) {
             Log.e(TAG, "App doesn't have permission to access internet.");
-            sendFeedResult(Constants.FEED_RESULT_OTHER_ERROR);
             e.printStackTrace();
-            return null;
+            return Constants.FEED_RESULT_OTHER_ERROR;
         }
-        return articles;
+        return FEED_PARSED;
     }
 
     /**
-     * Parses the given HTML and caches the contained images.
+     * Fills in the data that a database upgrade left out, a batch at a time:
+     * <ul>
+     * <li>the feed_id of articles that were stored before there were feed subscriptions (they all
+     * came from the default feed),</li>
+     * <li>compressed content of articles that were stored as plain text,</li>
+     * <li>the image manifest of articles that were stored before there was one.</li>
+     * </ul>
+     * When it gets through all of them, it tells DbHelper not to start it again.
      */
-    private void getArticleImages(String contentHtml) {
-        String state = Environment.getExternalStorageState();
+    private void backfill() {
+        try {
+            int compressed = 0;
+            int updated;
+            do {
+                updated =
+                        FeedContract.compressStoredContent(getContentResolver(),
+                                BACKFILL_BATCH_SIZE);
+                compressed += updated;
+            } while (updated == BACKFILL_BATCH_SIZE);
+            Log.v(TAG, "Compressed content of " + compressed + " articles.");
 
-        if (Environment.MEDIA_MOUNTED.equals(state)) {
-            File externalCacheDir = getExternalCacheDir();
-            if (externalCacheDir == null) {
-                Log.i(TAG, "Could not find or create external cache directory.");
-                return;
+            long lastId = 0;
+            while (lastId != -1) {
+                lastId =
+                        FeedContract.indexArticleImages(getContentResolver(), lastId,
+                                BACKFILL_BATCH_SIZE);
             }
 
-            // We don't care about metrics (the images won't be shown and the
-            // bounds are not saved)
-            DisplayMetrics metrics = new DisplayMetrics();
+            long defaultFeedId = -1;
+            Cursor c =
+                    getContentResolver().query(FeedContract.FEEDS_URI,
+                            new String[] { FeedContract.KEY_ID },
+                            FeedContract.KEY_FEED_URL + " = ?",
+                            new String[] { FeedContract.DEFAULT_FEED_URL }, null);
+            try {
+                if (c.moveToFirst()) {
+                    defaultFeedId = c.getLong(0);
+                }
+            } finally {
+                c.close();
+            }
+            if (defaultFeedId == -1) {
+                Log.i(TAG, "Default feed is not subscribed. Nothing to backfill.");
+                DbHelper.setBackfillDone(this);
+                return;
+            }
 
-            ImageGetterWithManageSpace imgGetter =
-                    new ImageGetter(externalCacheDir, getResources(), metrics, true);
-            // Now let's make imgGetter do the work. It will fetch the images
-            // and cache them.
-            Html.fromHtml(contentHtml, imgGetter, null);
-            imgGetter.manageSpace();
-        } else {
-            Log.i(TAG, "External storage cannot be mounted " + "- skipping image caching.");
+            ContentValues values = new ContentValues();
+            values.put(FeedContract.KEY_FEED_ID, defaultFeedId);
+            String batchSelection =
+                    FeedContract.KEY_ID + " IN (SELECT " + FeedContract.KEY_ID + " FROM "
+                            + FeedContract.ARTICLE_TABLE_NAME + " WHERE "
+                            + FeedContract.KEY_FEED_ID + " IS NULL LIMIT " + BACKFILL_BATCH_SIZE
+                            + ")";
+            int backfilled = 0;
+            do {
+                updated =
+                        getContentResolver().update(FeedContract.ARTICLES_URI, values,
+                                batchSelection, null);
+                backfilled += updated;
+            } while (updated == BACKFILL_BATCH_SIZE);
+            Log.v(TAG, "Backfilled feed_id of " + backfilled + " articles.");
+            DbHelper.setBackfillDone(this);
+        } catch (SQLiteException e) {
+            // The rows stay as they are and will be picked up by the next backfill.
+            Log.e(TAG, "Cannot backfill the database.");
+            e.printStackTrace();
         }
-
     }
 
     /**
-     * Fetches the Atom XML and puts the metadata and HTML contents into the SQLite database.
+     * Caches the images of the article, as listed in its image manifest.
      */
-    private void getArticles(String urlString) {
-        List<Article> articles = fetchArticles(urlString);
-
-        if (articles != null) {
-            Log.v(TAG, "Found " + articles.size() + " articles.");
-            int newArticles = insertArticlesIntoDatabase(articles);
-
-            if (newArticles == -1) {
-                return; // Something went wrong in insertArticlesIntoDatabase.
-            } else if (newArticles > 0) {
-                sendFeedResult(Constants.FEED_RESULT_NEW_ARTICLES);
-            } else {
-                sendFeedResult(Constants.FEED_RESULT_NO_NEW_ARTICLES);
-            }
+    private void getArticleImages(long articleId) {
+        // We don't care about metrics (the images won't be shown, and the
+        // manifest records their original size)
+        DisplayMetrics metrics = new DisplayMetrics();
+
+        ImageGetter imgGetter;
+        try {
+            imgGetter = new ImageGetter(this, metrics, true, null);
+        } catch (IllegalStateException e) {
+            Log.i(TAG, "No storage available - skipping image caching.");
+            return;
         }
+        // Now let's make imgGetter do the work. It will fetch the images
+        // (in parallel) and cache them.
+        imgGetter.prefetch(FeedContract.getArticleImages(getContentResolver(), articleId));
+        imgGetter.manageSpace();
     }
 
     /**
-     * Inserts articles into the SQLite database.
+     * Fetches the Atom XML and puts the metadata and HTML contents into the SQLite database. Each
+     * article is inserted as soon as the parser reads it.
      * 
-     * @return The number of articles that previously weren't in the database.
+     * @param fullSync
+     *            If false, stop reading the feed once it reaches articles we already have.
+     * @return One of the FEED_RESULT_ codes.
      */
-    private int insertArticlesIntoDatabase(List<Article> articles) {
-        int newArticles = 0;
-        int preloadedArticles = 0;
+    private int getArticles(long feedId, String urlString, boolean fullSync) {
+        FeedValidators validators = FeedValidators.load(this, urlString);
+        ArticleInserter inserter = new ArticleInserter(feedId, fullSync);
 
+        int result = fetchArticles(urlString, validators, inserter);
+        if (result != FEED_PARSED) {
+            return result;
+        }
         try {
-            for (Article article : articles) {
-                ContentValues articleValues = FeedContract.articleToContentValues(article);
-                Uri newUri = getContentResolver().insert(FeedContract.ARTICLES_URI, articleValues);
+            inserter.flush();
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Cannot open database.");
+            e.printStackTrace();
+            return Constants.FEED_RESULT_DATABASE_ERROR;
+        }
+        Log.v(TAG, "Found " + inserter.mArticles + " articles in " + urlString + ".");
 
-                if (newUri != null) {
-                    newArticles += 1;
-                    Log.v(TAG, "- Added article " + article.title + " to database on row URI "
-                            + newUri.toString() + ".");
+        // Only now that the articles are safely stored can we tell the
+        // server next time that we have this version of the feed.
+        validators.save(this, urlString);
 
-                    // Add an intent to cache images (will be executed in
-                    // sequence after this task is finished)
-                    if (preloadedArticles < MAX_ARTICLES_TO_PRELOAD) {
-                        Intent getImages = new Intent(this, ReaderFeedService.class);
-                        getImages.setAction(Constants.GET_ARTICLE_IMAGES_INTENT);
-                        getImages.putExtra(Constants.ARTICLE_CONTENT_EXTRA, article.content);
-                        startService(getImages);
-                        preloadedArticles += 1;
-                    }
-                } else {
-                    Log.v(TAG, "- Article " + article.title + " already in database.");
+        if (inserter.mNewArticles > 0) {
+            return Constants.FEED_RESULT_NEW_ARTICLES;
+        } else {
+            return Constants.FEED_RESULT_NO_NEW_ARTICLES;
+        }
+    }
+
+    /**
+     * Refreshes the subscribed feeds (or just one of them) in parallel, and sends one result for
+     * all of them when they are done. The feeds are fetched on a bounded pool of worker threads,
+     * with a limit on concurrent fetches from the same host, so the refresh takes about as long
+     * as the slowest feed rather than the sum of all of them.
+     * 
+     * @param feedId
+     *            The _id of the feed to refresh, or -1 for all feeds.
+     */
+    private void getSubscribedArticles(long feedId, final boolean fullSync) {
+        final long[] feedIds;
+        final String[] feedUrls;
+        try {
+            Cursor c =
+                    getContentResolver().query(FeedContract.FEEDS_URI,
+                            new String[] { FeedContract.KEY_ID, FeedContract.KEY_FEED_URL },
+                            feedId == -1 ? null : FeedContract.KEY_ID + " = " + feedId, null,
+                            null);
+            try {
+                feedIds = new long[c.getCount()];
+                feedUrls = new String[c.getCount()];
+                for (int i = 0; c.moveToNext(); i++) {
+                    feedIds[i] = c.getLong(0);
+                    feedUrls[i] = c.getString(1);
                 }
+            } finally {
+                c.close();
             }
         } catch (SQLiteException e) {
             Log.e(TAG, "Cannot open database.");
             sendFeedResult(Constants.FEED_RESULT_DATABASE_ERROR);
             e.printStackTrace();
-            return -1;
+            return;
+        }
+
+        if (feedIds.length == 0) {
+            sendFeedResult(Constants.FEED_RESULT_NO_NEW_ARTICLES);
+            return;
+        }
+
+        final int[] results = new int[feedIds.length];
+        final CountDownLatch done = new CountDownLatch(feedIds.length);
+        ExecutorService pool =
+                Executors.newFixedThreadPool(Math.min(feedIds.length, MAX_PARALLEL_FEED_FETCHES));
+        HostLimitedExecutor executor =
+                new HostLimitedExecutor(pool, MAX_PARALLEL_FEED_FETCHES_PER_HOST);
+        try {
+            for (int i = 0; i < feedIds.length; i++) {
+                final int feed = i;
+                executor.execute(getHost(feedUrls[feed]), new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            results[feed] = getArticles(feedIds[feed], feedUrls[feed], fullSync);
+                        } catch (RuntimeException e) {
+                            // E.g. a bad feed tripping up the parser. It must not leave the
+                            // result at 0, which isn't a result code, nor fail the other feeds.
+                            Log.e(TAG, "Cannot refresh " + feedUrls[feed] + ".");
+                            e.printStackTrace();
+                            results[feed] = Constants.FEED_RESULT_OTHER_ERROR;
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            done.await();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while waiting for feeds.");
+            Thread.currentThread().interrupt();
+            sendFeedResult(Constants.FEED_RESULT_OTHER_ERROR);
+            return;
+        } finally {
+            pool.shutdown();
+        }
+
+        int result = results[0];
+        for (int i = 1; i < results.length; i++) {
+            result = combineFeedResults(result, results[i]);
         }
-        return newArticles;
+        sendFeedResult(result);
     }
 
     /**
@@ -189,14 +380,131 @@ public class ReaderFeedService extends IntentService {
     @Override
     protected void onHandleIntent(Intent intent) {
         if (intent.getAction().equals(Constants.GET_ARTICLES_INTENT)) {
-            String urlString = FEED_URL; // TODO: get url from intent
-            getArticles(urlString);
+            getSubscribedArticles(intent.getLongExtra(Constants.FEED_ID_EXTRA, -1),
+                    intent.getBooleanExtra(Constants.FULL_SYNC_EXTRA, false));
         } else if (intent.getAction().equals(Constants.GET_ARTICLE_IMAGES_INTENT)) {
-            String articleContent = intent.getStringExtra(Constants.ARTICLE_CONTENT_EXTRA);
-            Log.v(TAG, "Get article images for content.");
-            getArticleImages(articleContent);
+            long articleId = intent.getLongExtra(Constants.ARTICLE_ID_EXTRA, -1);
+            Log.v(TAG, "Get article images for article " + articleId + ".");
+            getArticleImages(articleId);
+        } else if (intent.getAction().equals(Constants.BACKFILL_INTENT)) {
+            backfill();
         } else {
             Log.e(TAG, "Wrong intent received.");
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Inserts articles into the SQLite database as the AtomParser reads them, and counts the ones
+     * that previously weren't in the database. Unless doing a full sync, it stops the parser after
+     * KNOWN_ENTRIES_CUTOFF consecutive articles that we already have.
+     * 
+     * Articles are buffered and inserted INSERT_BATCH_SIZE at a time. Call flush() after the feed
+     * has been parsed to insert the rest.
+     */
+    private class ArticleInserter implements AtomParser.EntrySink {
+        public ArticleInserter(long feedId, boolean fullSync) {
+            mFeedId = feedId;
+            mFullSync = fullSync;
+        }
+
+        private final long mFeedId;
+        private final boolean mFullSync;
+        private final List<Article> mBatch = new ArrayList<Article>(INSERT_BATCH_SIZE);
+        private int mArticles = 0;
+        private int mNewArticles = 0;
+        private int mPreloadedArticles = 0;
+        private int mConsecutiveKnownArticles = 0;
+
+        /**
+         * Inserts the buffered articles into the database.
+         */
+        public void flush() {
+            if (mBatch.isEmpty()) {
+                return;
+            }
+            ContentValues[] values = new ContentValues[mBatch.size()];
+            for (int i = 0; i < values.length; i++) {
+                Article article = mBatch.get(i);
+                values[i] = FeedContract.articleToContentValues(article);
+                // Converted here, so that showing the article doesn't need to parse its HTML. The
+                // conversion also finds the images for the manifest.
+                if (article.content != null) {
+                    RenderedContent rendered = HtmlConverter.parse(article.content);
+                    values[i].put(FeedContract.KEY_RENDERED, rendered.encode());
+                    FeedContract.putImageUrls(values[i], rendered.getImageUrls());
+                }
+            }
+            long[] rowIds = FeedContract.bulkInsertArticles(getContentResolver(), values);
+
+            for (int i = 0; i < rowIds.length; i++) {
+                Article article = mBatch.get(i);
+                if (rowIds[i] != -1) {
+                    mNewArticles += 1;
+                    Log.v(TAG, "- Added article " + article.title + " to database on row "
+                            + rowIds[i] + ".");
+
+                    // Add an intent to cache images (will be executed in
+                    // sequence after this task is finished)
+                    if (mPreloadedArticles < MAX_ARTICLES_TO_PRELOAD) {
+                        Intent getImages =
+                                new Intent(ReaderFeedService.this, ReaderFeedService.class);
+                        getImages.setAction(Constants.GET_ARTICLE_IMAGES_INTENT);
+                        getImages.putExtra(Constants.ARTICLE_ID_EXTRA, rowIds[i]);
+                        startService(getImages);
+                        mPreloadedArticles += 1;
+                    }
+                } else {
+                    Log.v(TAG, "- Article " + article.title + " already in database.");
+                }
+            }
+            mBatch.clear();
+        }
+
+        @Override
+        public boolean onEntry(Article article) {
+            mArticles += 1;
+
+            if (!mFullSync) {
+                if (isKnown(article)) {
+                    mConsecutiveKnownArticles += 1;
+                    if (mConsecutiveKnownArticles >= KNOWN_ENTRIES_CUTOFF) {
+                        Log.v(TAG, "Reached known articles. Not reading the rest of the feed.");
+                        return false;
+                    }
+                    return true;
+                }
+                mConsecutiveKnownArticles = 0;
+            }
+
+            article.feed_id = mFeedId;
+            mBatch.add(article);
+            if (mBatch.size() >= INSERT_BATCH_SIZE) {
+                flush();
+            }
+            return true;
+        }
+
+        /**
+         * Returns true if the article is already in the database and hasn't been updated since.
+         */
+        private boolean isKnown(Article article) {
+            if (article.canonical_url == null) {
+                return false;
+            }
+            Cursor c =
+                    getContentResolver().query(FeedContract.ARTICLES_URI,
+                            new String[] { FeedContract.KEY_UPDATED_TIMESTAMP },
+                            FeedContract.KEY_CANONICAL_URL + " = ?",
+                            new String[] { article.canonical_url }, null);
+            try {
+                if (!c.moveToFirst()) {
+                    return false;
+                }
+                long storedUpdated = c.isNull(0) ? Article.UNKNOWN_TIMESTAMP : c.getLong(0);
+                return storedUpdated == article.updated_timestamp;
+            } finally {
+                c.close();
+            }
+        }
+    }
+}
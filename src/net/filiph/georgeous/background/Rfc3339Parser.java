@@ -0,0 +1,170 @@
+package net.filiph.georgeous.background;
+
+/**
+ * Parses RFC 3339 timestamps (e.g. "2013-05-21T10:00:00.000-07:00") as used by Atom feeds.
+ *
+ * Unlike SimpleDateFormat, this is thread-safe and doesn't allocate anything (except the exception
+ * on malformed input). It is also a bit lenient: the time part may be missing (midnight UTC is
+ * assumed), 't' and ' ' are accepted as the date/time separator, and the fraction of a second may
+ * have any number of digits.
+ */
+public class Rfc3339Parser {
+    private static final long MILLIS_PER_SECOND = 1000;
+    private static final long MILLIS_PER_MINUTE = 60 * MILLIS_PER_SECOND;
+    private static final long MILLIS_PER_HOUR = 60 * MILLIS_PER_MINUTE;
+    private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+
+    private static final int DATE_LENGTH = "yyyy-MM-dd".length();
+    private static final int DATE_TIME_LENGTH = "yyyy-MM-ddTHH:mm:ss".length();
+
+    private Rfc3339Parser() {
+    }
+
+    /**
+     * Returns the timestamp as milliseconds since the epoch (UTC).
+     *
+     * @throws IllegalArgumentException
+     *             If the timestamp is malformed.
+     */
+    public static long parseMillis(CharSequence timestamp) {
+        int start = skipWhitespace(timestamp, 0);
+        long days = parseEpochDay(timestamp, start);
+        if (!hasTime(timestamp, start)) {
+            return days * MILLIS_PER_DAY;
+        }
+        int pos = start + DATE_LENGTH + 1;
+        long millis =
+                days * MILLIS_PER_DAY + parseNumber(timestamp, pos, 2, 0, 23) * MILLIS_PER_HOUR
+                        + parseNumber(timestamp, pos + 3, 2, 0, 59) * MILLIS_PER_MINUTE
+                        // 60 is a leap second.
+                        + parseNumber(timestamp, pos + 6, 2, 0, 60) * MILLIS_PER_SECOND;
+        pos = start + DATE_TIME_LENGTH;
+        if (pos < timestamp.length() && timestamp.charAt(pos) == '.') {
+            // Fraction of a second. We only care about the first three digits.
+            int scale = 100;
+            pos++;
+            while (pos < timestamp.length() && isDigit(timestamp.charAt(pos))) {
+                millis += (timestamp.charAt(pos) - '0') * scale;
+                scale /= 10;
+                pos++;
+            }
+        }
+        return millis - parseOffset(timestamp, pos);
+    }
+
+    /**
+     * Returns the offset from UTC of the timestamp, in milliseconds. Adding it to the result of
+     * {@link #parseMillis(CharSequence)} gives the local time of whoever wrote the timestamp.
+     *
+     * @throws IllegalArgumentException
+     *             If the timestamp is malformed.
+     */
+    public static int parseOffsetMillis(CharSequence timestamp) {
+        int start = skipWhitespace(timestamp, 0);
+        if (!hasTime(timestamp, start)) {
+            return 0;
+        }
+        int pos = start + DATE_TIME_LENGTH;
+        if (pos < timestamp.length() && timestamp.charAt(pos) == '.') {
+            pos++;
+            while (pos < timestamp.length() && isDigit(timestamp.charAt(pos))) {
+                pos++;
+            }
+        }
+        return (int) parseOffset(timestamp, pos);
+    }
+
+    /**
+     * Converts a date of the proleptic Gregorian calendar to days since 1970-01-01. This is the
+     * days_from_civil algorithm by Howard Hinnant.
+     */
+    private static long daysFromCivil(long year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        final long era = (year >= 0 ? year : year - 399) / 400;
+        final long yearOfEra = year - era * 400;
+        final long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static boolean hasTime(CharSequence timestamp, int start) {
+        int separator = start + DATE_LENGTH;
+        if (separator >= timestamp.length()) {
+            return false;
+        }
+        char c = timestamp.charAt(separator);
+        if (c != 'T' && c != 't' && c != ' ') {
+            throw malformed(timestamp);
+        }
+        return true;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static IllegalArgumentException malformed(CharSequence timestamp) {
+        return new IllegalArgumentException("Malformed RFC 3339 timestamp: " + timestamp);
+    }
+
+    private static long parseEpochDay(CharSequence timestamp, int pos) {
+        int year = parseNumber(timestamp, pos, 4, 0, 9999);
+        requireChar(timestamp, pos + 4, '-');
+        int month = parseNumber(timestamp, pos + 5, 2, 1, 12);
+        requireChar(timestamp, pos + 7, '-');
+        int day = parseNumber(timestamp, pos + 8, 2, 1, 31);
+        return daysFromCivil(year, month, day);
+    }
+
+    private static int parseNumber(CharSequence timestamp, int pos, int digits, int min, int max) {
+        if (pos + digits > timestamp.length()) {
+            throw malformed(timestamp);
+        }
+        int value = 0;
+        for (int i = pos; i < pos + digits; i++) {
+            char c = timestamp.charAt(i);
+            if (!isDigit(c)) {
+                throw malformed(timestamp);
+            }
+            value = value * 10 + (c - '0');
+        }
+        if (value < min || value > max) {
+            throw malformed(timestamp);
+        }
+        return value;
+    }
+
+    /**
+     * Parses the "Z", "+HH:MM" or "-HH:MM" suffix. A missing suffix is taken as UTC.
+     */
+    private static long parseOffset(CharSequence timestamp, int pos) {
+        if (skipWhitespace(timestamp, pos) == timestamp.length()) {
+            return 0;
+        }
+        char c = timestamp.charAt(pos);
+        if (c == 'Z' || c == 'z') {
+            return 0;
+        }
+        if (c != '+' && c != '-') {
+            throw malformed(timestamp);
+        }
+        long offset =
+                parseNumber(timestamp, pos + 1, 2, 0, 23) * MILLIS_PER_HOUR
+                        + parseNumber(timestamp, pos + 4, 2, 0, 59) * MILLIS_PER_MINUTE;
+        requireChar(timestamp, pos + 3, ':');
+        return c == '-' ? -offset : offset;
+    }
+
+    private static void requireChar(CharSequence timestamp, int pos, char expected) {
+        if (pos >= timestamp.length() || timestamp.charAt(pos) != expected) {
+            throw malformed(timestamp);
+        }
+    }
+
+    private static int skipWhitespace(CharSequence timestamp, int pos) {
+        while (pos < timestamp.length() && Character.isWhitespace(timestamp.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+}
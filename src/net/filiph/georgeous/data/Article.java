@@ -4,6 +4,7 @@ package net.filiph.georgeous.data;
  * A simple class for storing the article data.
  */
 public class Article {
+    public static final long UNKNOWN_TIMESTAMP = 0;
 
     public Article() {
     }
@@ -19,12 +20,22 @@ public class Article {
     public String author_guess;
     public String thumbnail_url;
     public String canonical_url;
-    public String published_timestamp;
-    public String updated_timestamp;
+    /**
+     * Published time in milliseconds since the epoch, or UNKNOWN_TIMESTAMP.
+     */
+    public long published_timestamp = UNKNOWN_TIMESTAMP;
+    /**
+     * Updated time in milliseconds since the epoch, or UNKNOWN_TIMESTAMP.
+     */
+    public long updated_timestamp = UNKNOWN_TIMESTAMP;
     /**
      * A string with human-readable information (published, author).
      */
     public String human_info;
+    /**
+     * The _id of the feed this article comes from.
+     */
+    public long feed_id;
     // public int readcount = 0;
     // public String[] categories;
 }
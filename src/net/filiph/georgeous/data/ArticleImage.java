@@ -0,0 +1,28 @@
+package net.filiph.georgeous.data;
+
+/**
+ * A simple class for storing an entry of the image manifest (one image of one article).
+ */
+public class ArticleImage {
+    public static final int UNKNOWN_SIZE = 0;
+
+    public ArticleImage(String url, int position) {
+        this.url = url;
+        this.position = position;
+    }
+
+    public final String url;
+    /**
+     * Position of the image in the article, from 0.
+     */
+    public final int position;
+    /**
+     * One of FeedContract.IMAGE_NOT_CACHED, FeedContract.IMAGE_CACHED.
+     */
+    public int cache_state = FeedContract.IMAGE_NOT_CACHED;
+    /**
+     * Size of the original image in pixels, or UNKNOWN_SIZE until it has been downloaded.
+     */
+    public int width = UNKNOWN_SIZE;
+    public int height = UNKNOWN_SIZE;
+}
@@ -0,0 +1,107 @@
+package net.filiph.georgeous.data;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * A process-wide cache of decoded images, so that showing an article again (after rotation, or
+ * going back to it) doesn't decode all of its images from disk again.
+ *
+ * Bitmaps are keyed by URL and the width they were decoded for. The cache is bounded by the
+ * bitmaps' size in bytes, as a fraction of the app's memory class, and it gives memory back when
+ * the system asks for it.
+ */
+public class BitmapMemoryCache implements ComponentCallbacks2 {
+    private static final String TAG = "BitmapMemoryCache";
+
+    /**
+     * The cache may use 1/MEMORY_CLASS_FRACTION of the app's memory class.
+     */
+    private static final int MEMORY_CLASS_FRACTION = 8;
+
+    private static BitmapMemoryCache sInstance;
+
+    /**
+     * Returns the cache, creating it on the first call.
+     */
+    public static synchronized BitmapMemoryCache getInstance(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext();
+            int memoryClass =
+                    ((ActivityManager) appContext.getSystemService(Context.ACTIVITY_SERVICE))
+                            .getMemoryClass();
+            sInstance = new BitmapMemoryCache(memoryClass * 1024 * 1024 / MEMORY_CLASS_FRACTION);
+            appContext.registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    private BitmapMemoryCache(int maxSizeBytes) {
+        Log.v(TAG, "Creating bitmap cache of " + maxSizeBytes + " bytes.");
+        mCache = new LruCache<String, Bitmap>(maxSizeBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    private final LruCache<String, Bitmap> mCache;
+
+    private static String getKey(String url, int width) {
+        return url + "@" + width;
+    }
+
+    /**
+     * Returns the image at url decoded for the given width, or null if it's not in the cache.
+     */
+    public Bitmap get(String url, int width) {
+        return mCache.get(getKey(url, width));
+    }
+
+    public void put(String url, int width, Bitmap bitmap) {
+        mCache.put(getKey(url, width), bitmap);
+    }
+
+    public int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    public int getMissCount() {
+        return mCache.missCount();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // The bitmaps are keyed by width, so they don't go stale.
+    }
+
+    @Override
+    public void onLowMemory() {
+        mCache.evictAll();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE) {
+            // We're about to be killed. Whatever we free delays that.
+            mCache.evictAll();
+        } else if (level >= TRIM_MEMORY_BACKGROUND) {
+            mCache.trimToSize(mCache.maxSize() / 2);
+        }
+    }
+
+    @Override
+    public String toString() {
+        int hits = getHitCount();
+        int misses = getMissCount();
+        return "BitmapMemoryCache[size=" + mCache.size() + "/" + mCache.maxSize() + ", hits="
+                + hits + ", misses=" + misses + ", hitRate="
+                + (hits + misses == 0 ? 0 : 100 * hits / (hits + misses)) + "%]";
+    }
+}
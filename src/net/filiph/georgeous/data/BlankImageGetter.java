@@ -1,18 +1,31 @@
 package net.filiph.georgeous.data;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import android.content.res.Resources;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.DisplayMetrics;
 
 /**
- * An Html.ImageGetter that returns an empty Drawable. It may be extended to show a placeholder
- * image or to set bounds for the image if we know them.
+ * An Html.ImageGetter that returns an empty Drawable. Images whose size is known from the image
+ * manifest get an empty Drawable of the same size as the image will be shown at, so that the text
+ * doesn't move when the images arrive.
  */
 public class BlankImageGetter implements ImageGetterWithManageSpace {
 
-    public BlankImageGetter(Resources resources, DisplayMetrics metrics) {
+    public BlankImageGetter(Resources resources, DisplayMetrics metrics,
+            List<ArticleImage> images) {
         mResources = resources;
+        mMetrics = metrics;
+        for (ArticleImage image : images) {
+            if (image.width != ArticleImage.UNKNOWN_SIZE
+                    && image.height != ArticleImage.UNKNOWN_SIZE) {
+                mImages.put(image.url, image);
+            }
+        }
 
         // mDrawable = new BitmapDrawable(mResources,
         // BitmapFactory.decodeResource(mResources, R.drawable.loader)); - not
@@ -22,12 +35,38 @@ public class BlankImageGetter implements ImageGetterWithManageSpace {
     }
 
     private final Resources mResources;
+    private final DisplayMetrics mMetrics;
+
+    /**
+     * The images of the article with a known size, by URL.
+     */
+    private final Map<String, ArticleImage> mImages = new HashMap<String, ArticleImage>();
 
     private final BitmapDrawable mDrawable;
 
+    /**
+     * Number of times getDrawable() didn't know the size of the image.
+     */
+    private int mUnknownSizes = 0;
+
     @Override
     public Drawable getDrawable(String source) {
-        return mDrawable;
+        ArticleImage image = mImages.get(source);
+        if (image == null) {
+            mUnknownSizes += 1;
+            return mDrawable;
+        }
+        BitmapDrawable placeholder = new BitmapDrawable(mResources);
+        ImageGetter.setBounds(placeholder, image.width, image.height, mMetrics);
+        return placeholder;
+    }
+
+    /**
+     * Returns true if some of the placeholders were not the size of their image, so that whatever
+     * was rendered with this ImageGetter will move when the images come in.
+     */
+    public boolean hasUnknownSizes() {
+        return mUnknownSizes > 0;
     }
 
     @Override
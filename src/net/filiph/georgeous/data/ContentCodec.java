@@ -0,0 +1,130 @@
+package net.filiph.georgeous.data;
+
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes article HTML for the content column. Blogger's HTML deflates to a fraction of its size,
+ * which makes the database smaller and an article quicker to read from it.
+ *
+ * The encoded form starts with a one-byte format marker. FORMAT_DEFLATE is followed by the length
+ * of the UTF-8 text (4 bytes, big-endian) and the zlib stream. Anything without a marker is plain
+ * UTF-8, which is also how the rows stored before compression (as TEXT) read back.
+ */
+public class ContentCodec {
+    private static final String CHARSET = "UTF-8";
+
+    /**
+     * Marks deflated content. Never the first byte of HTML text.
+     */
+    private static final byte FORMAT_DEFLATE = 0x01;
+    private static final int HEADER_LENGTH = 5;
+
+    private ContentCodec() {
+    }
+
+    /**
+     * Returns the HTML in its stored form, or null for null.
+     */
+    public static byte[] encode(String html) {
+        if (html == null) {
+            return null;
+        }
+        byte[] plain = toUtf8(html);
+
+        Deflater deflater = new Deflater();
+        byte[] encoded;
+        int length;
+        try {
+            deflater.setInput(plain);
+            deflater.finish();
+            // If deflating doesn't pay off, keep the text as it is.
+            encoded = new byte[plain.length];
+            length = HEADER_LENGTH;
+            while (!deflater.finished() && length < encoded.length) {
+                length += deflater.deflate(encoded, length, encoded.length - length);
+            }
+            if (!deflater.finished()) {
+                return plain;
+            }
+        } finally {
+            deflater.end();
+        }
+
+        encoded[0] = FORMAT_DEFLATE;
+        encoded[1] = (byte) (plain.length >>> 24);
+        encoded[2] = (byte) (plain.length >>> 16);
+        encoded[3] = (byte) (plain.length >>> 8);
+        encoded[4] = (byte) plain.length;
+        byte[] result = new byte[length];
+        System.arraycopy(encoded, 0, result, 0, length);
+        return result;
+    }
+
+    /**
+     * Returns the HTML from its stored form, or null for null.
+     *
+     * @throws IllegalArgumentException
+     *             If the content is marked as deflated but is corrupt.
+     */
+    public static String decode(byte[] stored) {
+        if (stored == null) {
+            return null;
+        }
+        if (!isEncoded(stored)) {
+            return fromUtf8(stored, stored.length);
+        }
+
+        int plainLength =
+                (stored[1] & 0xff) << 24 | (stored[2] & 0xff) << 16 | (stored[3] & 0xff) << 8
+                        | (stored[4] & 0xff);
+        byte[] plain = new byte[plainLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored, HEADER_LENGTH, stored.length - HEADER_LENGTH);
+            int length = 0;
+            while (length < plainLength && !inflater.finished()) {
+                int inflated = inflater.inflate(plain, length, plainLength - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+            if (length != plainLength) {
+                throw new IllegalArgumentException("Truncated content: " + length + " of "
+                        + plainLength + " bytes.");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt content.", e);
+        } finally {
+            inflater.end();
+        }
+        return fromUtf8(plain, plainLength);
+    }
+
+    /**
+     * Whether the stored content is in a compressed format (as opposed to plain UTF-8).
+     */
+    public static boolean isEncoded(byte[] stored) {
+        return stored.length >= HEADER_LENGTH && stored[0] == FORMAT_DEFLATE;
+    }
+
+    private static byte[] toUtf8(String text) {
+        try {
+            return text.getBytes(CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            // Every Java platform supports UTF-8.
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String fromUtf8(byte[] bytes, int length) {
+        try {
+            return new String(bytes, 0, length, CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -1,26 +1,199 @@
 package net.filiph.georgeous.data;
 
+import net.filiph.georgeous.Constants;
+import net.filiph.georgeous.background.ReaderFeedService;
 import android.content.Context;
+import android.content.Intent;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
 
+/**
+ * Creates the database and upgrades it between versions.
+ * 
+ * Upgrades keep the existing articles (throwing them away means downloading the whole feed and all
+ * the images again). Each version has its own upgrade step, and the steps are run one after another
+ * from the version on the device. The steps only do the quick structural changes. Anything that
+ * needs to touch every row is left to a backfill in ReaderFeedService, which is started as soon as
+ * the upgraded database is open. Until the backfill reports that it is done, it is started again
+ * on every open, so it resumes if the process dies in the middle of it.
+ */
 public class DbHelper extends SQLiteOpenHelper {
-    private static final int DATABASE_VERSION = 4;
+    private static final String TAG = "DbHelper";
+
+    private static final int DATABASE_VERSION = 10;
     private static final String DATABASE_NAME = "feeddatabase";
 
+    /**
+     * Databases older than this are recreated from scratch. Version 4 is the first one we know how
+     * to upgrade.
+     */
+    private static final int OLDEST_UPGRADABLE_VERSION = 4;
+
+    private static final String PREFS_NAME = "database";
+    /**
+     * Set when onUpgrade() left work for the background backfill, and cleared when the backfill
+     * is done. Kept in the preferences so that it outlives the process.
+     */
+    private static final String PREF_BACKFILL_PENDING = "backfill_pending";
+
+    /**
+     * Called by the backfill when it has gone through all the rows, so that it isn't started again.
+     */
+    public static void setBackfillDone(Context context) {
+        setBackfillPending(context, false);
+    }
+
+    private static void setBackfillPending(Context context, boolean pending) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putBoolean(PREF_BACKFILL_PENDING, pending).commit();
+    }
+
     public DbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
     }
 
+    private final Context mContext;
+
     @Override
     public void onCreate(SQLiteDatabase db) {
+        db.execSQL(FeedContract.FEED_TABLE_CREATE);
         db.execSQL(FeedContract.ARTICLE_TABLE_CREATE);
+        db.execSQL(FeedContract.ARTICLE_LIST_INDEX_CREATE);
+        db.execSQL(FeedContract.IMAGE_TABLE_CREATE);
+        db.execSQL(FeedContract.IMAGE_URL_INDEX_CREATE);
+        db.insert(FeedContract.FEED_TABLE_NAME, null,
+                FeedContract.feedToContentValues(FeedContract.DEFAULT_FEED_URL));
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (!db.isReadOnly()) {
+            // Needed for ON DELETE CASCADE from feeds to their articles, and from articles to
+            // their images.
+            db.execSQL("PRAGMA foreign_keys = ON;");
+            // With write-ahead logging, the article list and article display can keep reading
+            // (on their own connections) while ReaderFeedService is inside a write transaction.
+            // Must be done outside of a transaction, which onOpen() is.
+            if (!db.enableWriteAheadLogging()) {
+                Log.w(TAG, "Could not enable write-ahead logging.");
+            }
+        }
+        if (mContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).getBoolean(
+                PREF_BACKFILL_PENDING, false)) {
+            Intent backfill = new Intent(mContext, ReaderFeedService.class);
+            backfill.setAction(Constants.BACKFILL_INTENT);
+            mContext.startService(backfill);
+        }
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + FeedContract.ARTICLE_TABLE_NAME + "; ");
-        db.execSQL(FeedContract.ARTICLE_TABLE_CREATE);
+        if (oldVersion < OLDEST_UPGRADABLE_VERSION) {
+            Log.i(TAG, "Database version " + oldVersion + " is too old to upgrade. Recreating.");
+            db.execSQL("DROP TABLE IF EXISTS " + FeedContract.IMAGE_TABLE_NAME + "; ");
+            db.execSQL("DROP TABLE IF EXISTS " + FeedContract.ARTICLE_TABLE_NAME + "; ");
+            db.execSQL("DROP TABLE IF EXISTS " + FeedContract.FEED_TABLE_NAME + "; ");
+            onCreate(db);
+            return;
+        }
+
+        Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion + ".");
+        if (oldVersion < 5) {
+            upgradeToVersion5(db);
+        }
+        if (oldVersion < 6) {
+            upgradeToVersion6(db);
+        }
+        if (oldVersion < 7) {
+            upgradeToVersion7(db);
+        }
+        // Version 8 stores content compressed. The schema is the same, and compressing the
+        // existing articles is left to the backfill.
+        if (oldVersion < 9) {
+            upgradeToVersion9(db);
+        }
+        if (oldVersion < 10) {
+            upgradeToVersion10(db);
+        }
+        setBackfillPending(mContext, true);
+    }
+
+    /*
+     * The SQL in the upgrade steps below is spelled out (instead of using FeedContract) because
+     * each step must describe its own version even when the current schema moves on.
+     */
+
+    /**
+     * Version 5 adds feed subscriptions. Existing articles all come from the default feed, but
+     * setting their feed_id is left to the backfill.
+     */
+    private static void upgradeToVersion5(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE feeds (url TEXT UNIQUE NOT NULL, "
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT);");
+        db.execSQL("INSERT INTO feeds (url) VALUES (?);",
+                new Object[] { FeedContract.DEFAULT_FEED_URL });
+        db.execSQL("ALTER TABLE articles ADD COLUMN "
+                + "feed_id INTEGER REFERENCES feeds(_id) ON DELETE CASCADE;");
+    }
+
+    /**
+     * Version 6 adds the covering index for the article list.
+     */
+    private static void upgradeToVersion6(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX articles_list_index ON articles "
+                + "(created_timestamp, title, human_info, thumbnail_url);");
     }
 
+    /**
+     * Version 7 stores the published and updated timestamps as milliseconds since the epoch
+     * (INTEGER) instead of the RFC 3339 strings from the feed, which only sorted correctly by
+     * accident. SQLite can't change the type of a column, so the table is copied.
+     */
+    private static void upgradeToVersion7(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE articles RENAME TO articles_v6;");
+        db.execSQL("CREATE TABLE articles (title TEXT, content BLOB, "
+                + "canonical_url TEXT UNIQUE NOT NULL, author_guess TEXT, thumbnail_url TEXT, "
+                + "created_timestamp INTEGER, updated_timestamp INTEGER, categories TEXT, "
+                + "human_info TEXT, readcount INTEGER, "
+                + "feed_id INTEGER REFERENCES feeds(_id) ON DELETE CASCADE, "
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT);");
+        // SQLite's julianday() understands RFC 3339, including the fraction of a second and the
+        // offset. The milliseconds must be kept: Rfc3339Parser keeps them for new articles, and
+        // ReaderFeedService.isKnown() compares the two. (2440587.5 is the Julian day of the epoch.)
+        db.execSQL("INSERT INTO articles (title, content, canonical_url, author_guess, "
+                + "thumbnail_url, created_timestamp, updated_timestamp, categories, human_info, "
+                + "readcount, feed_id, _id) SELECT title, content, canonical_url, author_guess, "
+                + "thumbnail_url, "
+                + "CAST(ROUND((julianday(created_timestamp) - 2440587.5) * 86400000) AS INTEGER), "
+                + "CAST(ROUND((julianday(updated_timestamp) - 2440587.5) * 86400000) AS INTEGER), "
+                + "categories, human_info, readcount, feed_id, _id FROM articles_v6;");
+        // Also drops the old articles_list_index.
+        db.execSQL("DROP TABLE articles_v6;");
+        db.execSQL("CREATE INDEX articles_list_index ON articles "
+                + "(created_timestamp, title, human_info, thumbnail_url);");
+    }
+
+    /**
+     * Version 9 adds the image manifest. Filling it in for the existing articles is left to the
+     * backfill.
+     */
+    private static void upgradeToVersion9(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE article_images ("
+                + "article_id INTEGER NOT NULL REFERENCES articles(_id) ON DELETE CASCADE, "
+                + "position INTEGER NOT NULL, url TEXT NOT NULL, "
+                + "cache_state INTEGER NOT NULL DEFAULT 0, width INTEGER, height INTEGER, "
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, UNIQUE (article_id, position));");
+        db.execSQL("CREATE INDEX article_images_url_index ON article_images (url);");
+    }
+
+    /**
+     * Version 10 stores the content converted by HtmlConverter. The existing articles are
+     * converted when they are first shown.
+     */
+    private static void upgradeToVersion10(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE articles ADD COLUMN rendered BLOB;");
+    }
 }
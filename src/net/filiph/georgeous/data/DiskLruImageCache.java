@@ -0,0 +1,472 @@
+package net.filiph.georgeous.data;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * A cache of downloaded images in a directory on disk.
+ *
+ * Each image is stored in a file named after the SHA-1 of its URL, so two URLs never share a file.
+ * Images are first written to a temporary file and only renamed to their real name once complete.
+ * A process killed in the middle of a download therefore never leaves a truncated image behind.
+ *
+ * The cache keeps an index of the stored images and their sizes in memory. The index is backed by
+ * an append-only journal in the same directory, so it survives restarts without listing and
+ * measuring every file. The journal has a two-line header (JOURNAL_MAGIC, JOURNAL_VERSION) and then
+ * one line per change:
+ *
+ * <pre>
+ * CLEAN 3400330d1dfc7f3f7f4b8d4d803dfcf6a1bc1e27 20412
+ * READ 3400330d1dfc7f3f7f4b8d4d803dfcf6a1bc1e27
+ * REMOVE 3400330d1dfc7f3f7f4b8d4d803dfcf6a1bc1e27
+ * </pre>
+ *
+ * READ lines record that an image was used, so that the least recently used order survives
+ * restarts too.
+ *
+ * A CLEAN line is only appended after the image file has been renamed into place. Files that the
+ * journal doesn't know about (left behind by a crash, or by the older cache format) are deleted
+ * when the cache is opened.
+ *
+ * The cache is opened once per process (see getInstance()) and then updated as images are added
+ * and removed, so using it doesn't cost a directory listing. The index is kept in access order and
+ * the total size is kept up to date, so trimToSize() only touches the images it removes.
+ */
+public class DiskLruImageCache {
+    private static final String TAG = "DiskLruImageCache";
+
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String JOURNAL_MAGIC = "georgeous.DiskLruImageCache";
+    static final String JOURNAL_VERSION = "1";
+    private static final String CLEAN = "CLEAN";
+    private static final String REMOVE = "REMOVE";
+    private static final String READ = "READ";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * The journal is rewritten from the index once it has this many lines more than needed (and at
+     * least as many redundant lines as entries).
+     */
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Images are copied into the cache in chunks of this size.
+     */
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+    private final File mDirectory;
+    private final File mJournalFile;
+
+    /**
+     * Size in bytes of each stored image, by key. Iterates from the least recently used.
+     */
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(0, 0.75f,
+            true);
+    private long mSize = 0;
+
+    private Writer mJournalWriter;
+    private int mRedundantOpCount = 0;
+
+    /**
+     * The open caches, by canonical directory path. There must only be one instance per directory
+     * in the process, or they would overwrite each other's journal.
+     */
+    private static final Map<String, DiskLruImageCache> sInstances =
+            new HashMap<String, DiskLruImageCache>();
+
+    /**
+     * Returns the cache for the directory. The first call for a directory opens the cache and
+     * reads the journal, later calls just return the same instance.
+     */
+    public static synchronized DiskLruImageCache getInstance(File directory) {
+        String path;
+        try {
+            path = directory.getCanonicalPath();
+        } catch (IOException e) {
+            path = directory.getAbsolutePath();
+        }
+        DiskLruImageCache cache = sInstances.get(path);
+        if (cache == null) {
+            cache = new DiskLruImageCache(directory);
+            sInstances.put(path, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Opens the cache in the directory, reading the index from its journal (or creating a new
+     * journal if there is none yet).
+     */
+    private DiskLruImageCache(File directory) {
+        mDirectory = directory;
+        mJournalFile = new File(directory, JOURNAL_FILE);
+        boolean journalIntact;
+        try {
+            journalIntact = readJournal();
+        } catch (IOException e) {
+            Log.w(TAG, "Journal is unreadable (" + e.getMessage() + "). Starting over.");
+            mEntries.clear();
+            mSize = 0;
+            journalIntact = false;
+        }
+        deleteUnknownFiles();
+        try {
+            if (journalIntact) {
+                mJournalWriter = openJournalWriter(true);
+            } else {
+                rebuildJournal();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write journal. The cache will not persist.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the key for the URL: a hex SHA-1 of it. Also the name of the cache file.
+     */
+    public static String getKey(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+            char[] hex = new char[hash.length * 2];
+            final char[] digits = "0123456789abcdef".toCharArray();
+            for (int i = 0; i < hash.length; i++) {
+                hex[i * 2] = digits[(hash[i] >> 4) & 0xf];
+                hex[i * 2 + 1] = digits[hash[i] & 0xf];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-1.
+            throw new AssertionError(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Returns the file with the image, or null if the image is not in the cache.
+     */
+    public synchronized File get(String url) {
+        String key = getKey(url);
+        // Also makes the entry the most recently used one.
+        if (mEntries.get(key) == null) {
+            return null;
+        }
+        File file = new File(mDirectory, key);
+        if (!file.exists()) {
+            // Deleted behind our back: the system (or the user) clears cache directories.
+            if (!mJournalFile.exists()) {
+                forgetAll();
+            } else {
+                removeKey(key);
+            }
+            return null;
+        }
+        mRedundantOpCount++;
+        appendToJournal(READ + " " + key);
+        return file;
+    }
+
+    /**
+     * Stores the image read from the stream. The stream is read to the end but not closed.
+     *
+     * @return True if the image is now in the cache, false if it couldn't be stored.
+     */
+    public boolean put(String url, InputStream in) {
+        return putKey(getKey(url), in);
+    }
+
+    /**
+     * Moves all the images to the other cache, least recently used first (so they keep their
+     * order there). Images that can't be moved are dropped.
+     */
+    public synchronized void moveAllTo(DiskLruImageCache other) {
+        if (mEntries.isEmpty()) {
+            return;
+        }
+        Log.i(TAG, "Moving " + mEntries.size() + " images to " + other.mDirectory + ".");
+        List<String> keys = new ArrayList<String>(mEntries.keySet());
+        for (String key : keys) {
+            try {
+                InputStream in = new FileInputStream(new File(mDirectory, key));
+                try {
+                    other.putKey(key, in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Could not move " + key + ": " + e.getMessage());
+            }
+            removeKey(key);
+        }
+    }
+
+    private boolean putKey(String key, InputStream in) {
+        // Each write gets its own temporary file, so two threads writing the same image don't mix
+        // their bytes.
+        File tmp = new File(mDirectory, key + "." + Thread.currentThread().getId() + TMP_SUFFIX);
+        long length = 0;
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                ReadableByteChannel source = Channels.newChannel(in);
+                FileChannel destination = out.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+                while (source.read(buffer) != -1) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        length += destination.write(buffer);
+                    }
+                    buffer.clear();
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write " + key + " to cache: " + e.getMessage());
+            tmp.delete();
+            return false;
+        }
+        return commit(key, tmp, length);
+    }
+
+    /**
+     * Removes the image from the cache.
+     */
+    public synchronized void remove(String url) {
+        removeKey(getKey(url));
+    }
+
+    /**
+     * Total size in bytes of the stored images.
+     */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    /**
+     * Removes images, least recently used first, until the cache is no larger than maxSize.
+     */
+    public synchronized void trimToSize(long maxSize) {
+        while (mSize > maxSize) {
+            String eldest = mEntries.keySet().iterator().next();
+            Log.v(TAG, "Deleting cached image " + eldest);
+            removeKey(eldest);
+        }
+    }
+
+    private synchronized boolean commit(String key, File tmp, long length) {
+        File file = new File(mDirectory, key);
+        // rename() replaces the file atomically, so a reader of the old image (if any) still has
+        // a complete file.
+        if (!tmp.renameTo(file)) {
+            Log.w(TAG, "Could not rename " + tmp.getName() + " to " + key + ".");
+            tmp.delete();
+            return false;
+        }
+        Long previous = mEntries.put(key, length);
+        if (previous != null) {
+            mSize -= previous;
+            mRedundantOpCount++;
+        }
+        mSize += length;
+        appendToJournal(CLEAN + " " + key + " " + length);
+        return true;
+    }
+
+    /**
+     * Empties the index after the directory was cleared (journal and all), and starts a new
+     * journal, so that images can be stored again.
+     */
+    private void forgetAll() {
+        Log.w(TAG, "Cache directory " + mDirectory + " was cleared. Starting over.");
+        mEntries.clear();
+        mSize = 0;
+        deleteUnknownFiles();
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("Could not create " + mDirectory + ".");
+            }
+            rebuildJournal();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write journal. The cache will not persist.");
+            e.printStackTrace();
+            closeJournalWriter();
+        }
+    }
+
+    private void removeKey(String key) {
+        Long size = mEntries.remove(key);
+        if (size == null) {
+            return;
+        }
+        mSize -= size;
+        new File(mDirectory, key).delete();
+        // Both the CLEAN line and this one are redundant now.
+        mRedundantOpCount += 2;
+        appendToJournal(REMOVE + " " + key);
+    }
+
+    private void appendToJournal(String line) {
+        if (mJournalWriter == null) {
+            return;
+        }
+        try {
+            mJournalWriter.write(line);
+            mJournalWriter.write('\n');
+            mJournalWriter.flush();
+            if (mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                    && mRedundantOpCount >= mEntries.size()) {
+                rebuildJournal();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write journal. The cache will not persist.");
+            e.printStackTrace();
+            closeJournalWriter();
+        }
+    }
+
+    private void closeJournalWriter() {
+        if (mJournalWriter != null) {
+            try {
+                mJournalWriter.close();
+            } catch (IOException e) {
+                // Nothing to do.
+            }
+            mJournalWriter = null;
+        }
+    }
+
+    /**
+     * Deletes the files in the directory that are not in the index, including leftover temporary
+     * files.
+     */
+    private void deleteUnknownFiles() {
+        String[] filenames = mDirectory.list();
+        if (filenames == null) {
+            return;
+        }
+        for (String filename : filenames) {
+            if (!mEntries.containsKey(filename) && !filename.equals(JOURNAL_FILE)) {
+                new File(mDirectory, filename).delete();
+            }
+        }
+    }
+
+    private Writer openJournalWriter(boolean append) throws IOException {
+        File file = append ? mJournalFile : new File(mDirectory, JOURNAL_FILE_TMP);
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, append),
+                "US-ASCII"), BUFFER_SIZE);
+    }
+
+    /**
+     * Reads the index from the journal. A missing journal means an empty index. A truncated last
+     * line (from a process killed while appending) is ignored.
+     * 
+     * @return True if the journal can be appended to, false if it needs to be rebuilt.
+     */
+    private boolean readJournal() throws IOException {
+        if (!mJournalFile.exists()) {
+            return false;
+        }
+        boolean endsWithNewline;
+        RandomAccessFile file = new RandomAccessFile(mJournalFile, "r");
+        try {
+            file.seek(Math.max(0, file.length() - 1));
+            endsWithNewline = file.read() == '\n';
+        } finally {
+            file.close();
+        }
+
+        BufferedReader reader =
+                new BufferedReader(new InputStreamReader(new FileInputStream(mJournalFile),
+                        "US-ASCII"), BUFFER_SIZE);
+        int lineCount = 0;
+        try {
+            if (!JOURNAL_MAGIC.equals(reader.readLine())
+                    || !JOURNAL_VERSION.equals(reader.readLine())) {
+                throw new IOException("Unexpected journal header.");
+            }
+            String line = reader.readLine();
+            while (line != null) {
+                String next = reader.readLine();
+                if (next == null && !endsWithNewline) {
+                    break;
+                }
+                lineCount++;
+                String[] parts = line.split(" ");
+                line = next;
+                if (parts.length == 3 && parts[0].equals(CLEAN)) {
+                    long length;
+                    try {
+                        length = Long.parseLong(parts[2]);
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    Long previous = mEntries.put(parts[1], length);
+                    mSize += length - (previous == null ? 0 : previous);
+                } else if (parts.length == 2 && parts[0].equals(READ)) {
+                    mEntries.get(parts[1]);
+                } else if (parts.length == 2 && parts[0].equals(REMOVE)) {
+                    Long previous = mEntries.remove(parts[1]);
+                    mSize -= previous == null ? 0 : previous;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        mRedundantOpCount = lineCount - mEntries.size();
+        return endsWithNewline;
+    }
+
+    /**
+     * Writes a new journal with just the current index (in access order), and replaces the old one
+     * with it.
+     */
+    private void rebuildJournal() throws IOException {
+        closeJournalWriter();
+        File tmp = new File(mDirectory, JOURNAL_FILE_TMP);
+        Writer writer = openJournalWriter(false);
+        try {
+            writer.write(JOURNAL_MAGIC + "\n" + JOURNAL_VERSION + "\n");
+            for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                writer.write(CLEAN + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(mJournalFile)) {
+            throw new IOException("Could not rename " + JOURNAL_FILE_TMP + ".");
+        }
+        mRedundantOpCount = 0;
+        mJournalWriter = openJournalWriter(true);
+    }
+}
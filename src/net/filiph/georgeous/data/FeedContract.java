@@ -1,9 +1,16 @@
 package net.filiph.georgeous.data;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import android.app.Activity;
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.CursorLoader;
+import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 
 public class FeedContract {
     private FeedContract() {
@@ -15,46 +22,348 @@ public class FeedContract {
             "vdn.android.cursor.item/vdn.net.filiph.georgeous.provider.articles";
     public static final String CONTENT_TYPE =
             "vdn.android.cursor.dir/vdn.net.filiph.georgeous.provider.articles";
+    public static final String FEED_CONTENT_ITEM_TYPE =
+            "vdn.android.cursor.item/vdn.net.filiph.georgeous.provider.feeds";
+    public static final String FEED_CONTENT_TYPE =
+            "vdn.android.cursor.dir/vdn.net.filiph.georgeous.provider.feeds";
+    public static final String IMAGE_CONTENT_TYPE =
+            "vdn.android.cursor.dir/vdn.net.filiph.georgeous.provider.images";
+
+    /**
+     * The feed every new installation is subscribed to.
+     */
+    public static final String DEFAULT_FEED_URL =
+            "http://android-developers.blogspot.com/atom.xml";
+
+    public static final String FEED_TABLE_NAME = "feeds";
+    public static final String KEY_FEED_URL = "url";
 
     public static final String ARTICLE_TABLE_NAME = "articles";
     public static final String KEY_TITLE = "title";
+    /**
+     * The HTML, stored as encoded by ContentCodec (BLOB). FeedProvider returns it decoded.
+     */
     public static final String KEY_CONTENT = "content";
+    /**
+     * The content converted by HtmlConverter, as encoded by RenderedContent (BLOB). NULL (or a
+     * different format version) means the content has to be converted again.
+     */
+    public static final String KEY_RENDERED = "rendered";
     public static final String KEY_CANONICAL_URL = "canonical_url";
     public static final String KEY_AUTHOR_GUESS = "author_guess";
     public static final String KEY_THUMBNAIL_URL = "thumbnail_url";
+    /**
+     * Milliseconds since the epoch (INTEGER).
+     */
     public static final String KEY_PUBLISHED_TIMESTAMP = "created_timestamp";
+    /**
+     * Milliseconds since the epoch (INTEGER).
+     */
     public static final String KEY_UPDATED_TIMESTAMP = "updated_timestamp";
     public static final String KEY_READCOUNT = "readcount";
     public static final String KEY_CATEGORIES = "categories";
     public static final String KEY_HUMAN_INFO = "human_info";
+    public static final String KEY_FEED_ID = "feed_id";
     public static final String KEY_ID = "_id";
 
+    /**
+     * Covers the article list query (see getArticleListLoader()): SQLite can walk this index
+     * backwards for the ORDER BY and read all the listed columns from it, without touching the
+     * table rows and their (large) content.
+     */
+    public static final String ARTICLE_LIST_INDEX_CREATE = "CREATE INDEX articles_list_index ON "
+            + ARTICLE_TABLE_NAME + " (" + KEY_PUBLISHED_TIMESTAMP + ", " + KEY_TITLE + ", "
+            + KEY_HUMAN_INFO + ", " + KEY_THUMBNAIL_URL + ");";
+
+    /**
+     * The image manifest: the images of each article, extracted from its content when the article
+     * is inserted. The same URL may appear in more than one article.
+     */
+    public static final String IMAGE_TABLE_NAME = "article_images";
+    public static final String KEY_ARTICLE_ID = "article_id";
+    public static final String KEY_IMAGE_URL = "url";
+    public static final String KEY_POSITION = "position";
+    /**
+     * IMAGE_NOT_CACHED or IMAGE_CACHED. This is the last known state: the disk cache may have
+     * evicted the image since.
+     */
+    public static final String KEY_CACHE_STATE = "cache_state";
+    /**
+     * Size of the original image in pixels, or NULL until it has been downloaded.
+     */
+    public static final String KEY_WIDTH = "width";
+    public static final String KEY_HEIGHT = "height";
+
+    public static final int IMAGE_NOT_CACHED = 0;
+    public static final int IMAGE_CACHED = 1;
+
+    public static final String IMAGE_TABLE_CREATE = "CREATE TABLE " + IMAGE_TABLE_NAME + " ("
+            + KEY_ARTICLE_ID + " INTEGER NOT NULL REFERENCES " + ARTICLE_TABLE_NAME + "(" + KEY_ID
+            + ") ON DELETE CASCADE, " + KEY_POSITION + " INTEGER NOT NULL, " + KEY_IMAGE_URL
+            + " TEXT NOT NULL, " + KEY_CACHE_STATE + " INTEGER NOT NULL DEFAULT "
+            + IMAGE_NOT_CACHED + ", " + KEY_WIDTH + " INTEGER, " + KEY_HEIGHT + " INTEGER, "
+            + KEY_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, UNIQUE (" + KEY_ARTICLE_ID + ", "
+            + KEY_POSITION + "));";
+
+    /**
+     * For updating the state of an image by URL. (Lookups by article use the UNIQUE index.)
+     */
+    public static final String IMAGE_URL_INDEX_CREATE = "CREATE INDEX article_images_url_index ON "
+            + IMAGE_TABLE_NAME + " (" + KEY_IMAGE_URL + ");";
+
+    /**
+     * Selection for articles published at or after the given time (in milliseconds since the
+     * epoch, as a selection argument). Uses ARTICLE_LIST_INDEX_CREATE.
+     */
+    public static final String PUBLISHED_SINCE_SELECTION = KEY_PUBLISHED_TIMESTAMP + " >= ?";
+
+    /**
+     * The only columns the article list needs. Served by ARTICLE_LIST_URI.
+     */
+    public static final String[] ARTICLE_LIST_PROJECTION = { KEY_ID, KEY_TITLE, KEY_HUMAN_INFO,
+            KEY_THUMBNAIL_URL };
+
+    public static final String FEED_TABLE_CREATE = "CREATE TABLE " + FEED_TABLE_NAME + " ("
+            + KEY_FEED_URL + " TEXT UNIQUE NOT NULL, " + KEY_ID
+            + " INTEGER PRIMARY KEY AUTOINCREMENT);";
+
     public static final String ARTICLE_TABLE_CREATE = "CREATE TABLE " + ARTICLE_TABLE_NAME + " ("
-            + KEY_TITLE + " TEXT, " + KEY_CONTENT + " BLOB, " + KEY_CANONICAL_URL
+            + KEY_TITLE + " TEXT, " + KEY_CONTENT + " BLOB, " + KEY_RENDERED + " BLOB, "
+            + KEY_CANONICAL_URL
             + " TEXT UNIQUE NOT NULL, " + KEY_AUTHOR_GUESS + " TEXT, " + KEY_THUMBNAIL_URL
-            + " TEXT, " + KEY_PUBLISHED_TIMESTAMP + " TEXT, " + KEY_UPDATED_TIMESTAMP + " TEXT, "
-            + KEY_CATEGORIES + " TEXT, " + KEY_HUMAN_INFO + " TEXT, " + KEY_READCOUNT
-            + " INTEGER, " + KEY_ID + " INTEGER PRIMARY KEY AUTOINCREMENT);";
+            + " TEXT, " + KEY_PUBLISHED_TIMESTAMP + " INTEGER, " + KEY_UPDATED_TIMESTAMP
+            + " INTEGER, " + KEY_CATEGORIES + " TEXT, " + KEY_HUMAN_INFO + " TEXT, " + KEY_READCOUNT
+            + " INTEGER, " + KEY_FEED_ID + " INTEGER REFERENCES " + FEED_TABLE_NAME + "("
+            + KEY_ID + ") ON DELETE CASCADE, " + KEY_ID + " INTEGER PRIMARY KEY AUTOINCREMENT);";
+
+    /**
+     * The columns that FeedProvider's bulk insert writes. Any other values are ignored.
+     */
+    static final String[] ARTICLE_INSERT_COLUMNS = { KEY_TITLE, KEY_CONTENT, KEY_RENDERED,
+            KEY_AUTHOR_GUESS, KEY_CANONICAL_URL, KEY_THUMBNAIL_URL, KEY_PUBLISHED_TIMESTAMP,
+            KEY_UPDATED_TIMESTAMP, KEY_HUMAN_INFO, KEY_FEED_ID };
+
+    /**
+     * Not a column: the image URLs of an article for the bulk insert to put in the image manifest,
+     * one per line (see putImageUrls()). Without it, the bulk insert finds them in the content.
+     */
+    static final String VALUE_IMAGE_URLS = "image_urls";
+
+    /**
+     * Name of the FeedProvider call that bulk-inserts articles and reports which of them were new.
+     */
+    static final String METHOD_BULK_INSERT_ARTICLES = "bulkInsertArticles";
+    static final String EXTRA_ARTICLE_VALUES = "articleValues";
+    static final String EXTRA_ROW_IDS = "rowIds";
+
+    /**
+     * Name of the FeedProvider call that compresses a batch of articles stored as plain text.
+     */
+    static final String METHOD_COMPRESS_CONTENT = "compressContent";
+    static final String EXTRA_COUNT = "count";
+
+    /**
+     * Name of the FeedProvider call that fills in the image manifest of a batch of articles
+     * stored before it existed.
+     */
+    static final String METHOD_INDEX_IMAGES = "indexImages";
+    static final String EXTRA_LAST_ID = "lastId";
 
     public static ContentValues articleToContentValues(Article article) {
         ContentValues values = new ContentValues();
         values.put(KEY_TITLE, article.title);
-        values.put(KEY_CONTENT, article.content);
+        values.put(KEY_CONTENT, ContentCodec.encode(article.content));
         values.put(KEY_AUTHOR_GUESS, article.author_guess);
         values.put(KEY_CANONICAL_URL, article.canonical_url);
         values.put(KEY_THUMBNAIL_URL, article.thumbnail_url);
-        values.put(KEY_PUBLISHED_TIMESTAMP, article.published_timestamp);
-        values.put(KEY_UPDATED_TIMESTAMP, article.updated_timestamp);
+        values.put(KEY_PUBLISHED_TIMESTAMP, timestampOrNull(article.published_timestamp));
+        values.put(KEY_UPDATED_TIMESTAMP, timestampOrNull(article.updated_timestamp));
         values.put(KEY_HUMAN_INFO, article.human_info);
+        values.put(KEY_FEED_ID, article.feed_id);
+        return values;
+    }
+
+    private static Long timestampOrNull(long timestamp) {
+        return timestamp == Article.UNKNOWN_TIMESTAMP ? null : timestamp;
+    }
+
+    public static ContentValues feedToContentValues(String url) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_FEED_URL, url);
         return values;
     }
 
     public static final Uri ARTICLES_URI = Uri.parse("content://" + AUTHORITY + "/"
             + ARTICLE_TABLE_NAME);
 
+    /**
+     * The list of articles, newest first, with only the ARTICLE_LIST_PROJECTION columns.
+     */
+    public static final Uri ARTICLE_LIST_URI = Uri.withAppendedPath(ARTICLES_URI, "list");
+
+    public static final Uri FEEDS_URI = Uri.parse("content://" + AUTHORITY + "/"
+            + FEED_TABLE_NAME);
+
+    /**
+     * All the images in the manifest. Only supports update.
+     */
+    public static final Uri IMAGES_URI = Uri.parse("content://" + AUTHORITY + "/images");
+
+    /**
+     * The images of the article, in the order they appear in it.
+     */
+    public static Uri getArticleImagesUri(long articleId) {
+        return Uri.withAppendedPath(ContentUris.withAppendedId(ARTICLES_URI, articleId), "images");
+    }
+
+    /**
+     * Returns the image manifest of the article.
+     */
+    public static List<ArticleImage> getArticleImages(ContentResolver resolver, long articleId) {
+        List<ArticleImage> images = new ArrayList<ArticleImage>();
+        Cursor c =
+                resolver.query(getArticleImagesUri(articleId), new String[] { KEY_IMAGE_URL,
+                        KEY_POSITION, KEY_CACHE_STATE, KEY_WIDTH, KEY_HEIGHT }, null, null, null);
+        if (c == null) {
+            return images;
+        }
+        try {
+            while (c.moveToNext()) {
+                ArticleImage image = new ArticleImage(c.getString(0), c.getInt(1));
+                image.cache_state = c.getInt(2);
+                // getInt() returns 0 (UNKNOWN_SIZE) for NULL.
+                image.width = c.getInt(3);
+                image.height = c.getInt(4);
+                images.add(image);
+            }
+        } finally {
+            c.close();
+        }
+        return images;
+    }
+
+    /**
+     * Records that the image at url (in any article) is cached, and its size.
+     */
+    public static void setImageCached(ContentResolver resolver, String url, int width, int height) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_CACHE_STATE, IMAGE_CACHED);
+        values.put(KEY_WIDTH, width);
+        values.put(KEY_HEIGHT, height);
+        resolver.update(IMAGES_URI, values, KEY_IMAGE_URL + " = ?", new String[] { url });
+    }
+
+    /**
+     * Returns the HTML content of the article, or null if there is no such article.
+     */
+    public static String getArticleContent(ContentResolver resolver, long articleId) {
+        Cursor c =
+                resolver.query(FeedProvider.getArticleByIdUri(articleId),
+                        new String[] { KEY_CONTENT }, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Stores the converted content of the article (see RenderedContent.encode()). Doesn't notify
+     * the article's observers, since the article itself hasn't changed.
+     */
+    public static void setRenderedContent(ContentResolver resolver, long articleId,
+            byte[] rendered) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_RENDERED, rendered);
+        resolver.update(FeedProvider.getArticleByIdUri(articleId), values, null, null);
+    }
+
+    /**
+     * Fills in the image manifest of up to batchSize articles (with _id greater than afterId)
+     * that have no images in it yet, in one transaction.
+     * 
+     * @return The _id of the last article looked at, to pass as afterId for the next batch, or -1
+     *         if there were no more articles.
+     */
+    public static long indexArticleImages(ContentResolver resolver, long afterId, int batchSize) {
+        Bundle extras = new Bundle();
+        extras.putLong(EXTRA_LAST_ID, afterId);
+        Bundle result =
+                resolver.call(ARTICLES_URI, METHOD_INDEX_IMAGES, Integer.toString(batchSize),
+                        extras);
+        return result.getLong(EXTRA_LAST_ID);
+    }
+
+    /**
+     * Inserts the articles in one transaction. Articles that are already in the database are
+     * ignored.
+     * 
+     * @return The row id of each newly inserted article, or -1 for articles that were already in
+     *         the database. In the same order as articleValues.
+     */
+    public static long[] bulkInsertArticles(ContentResolver resolver,
+            ContentValues[] articleValues) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(EXTRA_ARTICLE_VALUES, articleValues);
+        Bundle result = resolver.call(ARTICLES_URI, METHOD_BULK_INSERT_ARTICLES, null, extras);
+        return result.getLongArray(EXTRA_ROW_IDS);
+    }
+
+    /**
+     * Adds the article's image URLs (in order) to its values for bulkInsertArticles(), which then
+     * doesn't have to decode and search the content for them.
+     */
+    public static void putImageUrls(ContentValues values, List<String> urls) {
+        StringBuilder joined = new StringBuilder();
+        for (int i = 0; i < urls.size(); i++) {
+            String url = urls.get(i);
+            if (i > 0) {
+                joined.append('\n');
+            }
+            // A URL can't contain a line break (browsers drop them), so they are the separator.
+            joined.append(url.replace("\n", "").replace("\r", ""));
+        }
+        values.put(VALUE_IMAGE_URLS, joined.toString());
+    }
+
+    /**
+     * Returns the image URLs put by putImageUrls(), or null if there are none in the values.
+     */
+    static List<String> getImageUrls(ContentValues values) {
+        String joined = values.getAsString(VALUE_IMAGE_URLS);
+        if (joined == null) {
+            return null;
+        }
+        List<String> urls = new ArrayList<String>();
+        if (joined.length() > 0) {
+            for (String url : joined.split("\n", -1)) {
+                urls.add(url);
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Compresses the content of up to batchSize articles that are still stored uncompressed, in
+     * one transaction.
+     * 
+     * @return The number of articles compressed. Less than batchSize means there are no more.
+     */
+    public static int compressStoredContent(ContentResolver resolver, int batchSize) {
+        Bundle result =
+                resolver.call(ARTICLES_URI, METHOD_COMPRESS_CONTENT, Integer.toString(batchSize),
+                        null);
+        return result.getInt(EXTRA_COUNT);
+    }
+
+    public static CursorLoader getArticleListLoader(Activity activity) {
+        return new CursorLoader(activity, ARTICLE_LIST_URI, ARTICLE_LIST_PROJECTION, null, null,
+                null);
+    }
+
     public static CursorLoader getArticleByIdLoader(Activity activity, long articleId) {
         return new CursorLoader(activity, FeedProvider.getArticleByIdUri(articleId), new String[] {
-                KEY_TITLE, KEY_CONTENT, KEY_CANONICAL_URL },
-                null, null, null);
+                KEY_TITLE, KEY_RENDERED, KEY_CANONICAL_URL, KEY_UPDATED_TIMESTAMP }, null, null,
+                null);
     }
 }
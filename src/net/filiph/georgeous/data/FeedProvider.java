@@ -1,18 +1,30 @@
 package net.filiph.georgeous.data;
 
+import java.io.UnsupportedEncodingException;
+import java.util.List;
+
+import net.filiph.georgeous.background.FeedValidators;
+
 import android.content.ContentProvider;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
 import android.util.Log;
 
 /**
  * ContentProvider for the feed. Provides URIs such as
- * "content://net.filiph.georgeous.provider/articles/1".
+ * "content://net.filiph.georgeous.provider/articles/1", its image manifest
+ * "content://net.filiph.georgeous.provider/articles/1/images" and, for the subscribed feeds,
+ * "content://net.filiph.georgeous.provider/feeds".
  */
 public class FeedProvider extends ContentProvider {
     private static final String TAG = "FeedProvider";
@@ -21,12 +33,22 @@ public class FeedProvider extends ContentProvider {
 
     private static final int ARTICLES = 1;
     private static final int ARTICLES_ID = 2;
+    private static final int FEEDS = 3;
+    private static final int FEEDS_ID = 4;
+    private static final int ARTICLE_LIST = 5;
+    private static final int ARTICLE_IMAGES = 6;
+    private static final int IMAGES = 7;
 
     private static final UriMatcher sURIMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
     static {
         sURIMatcher.addURI("net.filiph.georgeous.provider", "articles", ARTICLES);
         sURIMatcher.addURI("net.filiph.georgeous.provider", "articles/#", ARTICLES_ID);
+        sURIMatcher.addURI("net.filiph.georgeous.provider", "articles/list", ARTICLE_LIST);
+        sURIMatcher.addURI("net.filiph.georgeous.provider", "feeds", FEEDS);
+        sURIMatcher.addURI("net.filiph.georgeous.provider", "feeds/#", FEEDS_ID);
+        sURIMatcher.addURI("net.filiph.georgeous.provider", "articles/#/images", ARTICLE_IMAGES);
+        sURIMatcher.addURI("net.filiph.georgeous.provider", "images", IMAGES);
     }
 
     public static Uri getArticleByIdUri(long id) {
@@ -34,8 +56,81 @@ public class FeedProvider extends ContentProvider {
                 + FeedContract.ARTICLE_TABLE_NAME + "/" + id);
     }
 
+    /**
+     * Inserts all the articles in a single transaction, reusing one compiled statement. Only one
+     * change notification is sent for the whole batch.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (sURIMatcher.match(uri) != ARTICLES) {
+            throw new IllegalArgumentException("Unsupported URI: " + uri.toString());
+        }
+        int inserted = 0;
+        for (long rowId : insertArticles(values)) {
+            if (rowId != -1) {
+                inserted += 1;
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * Handles FeedContract.METHOD_BULK_INSERT_ARTICLES, which works like bulkInsert but also tells
+     * the caller which of the articles were new, FeedContract.METHOD_COMPRESS_CONTENT and
+     * FeedContract.METHOD_INDEX_IMAGES.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (FeedContract.METHOD_COMPRESS_CONTENT.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(FeedContract.EXTRA_COUNT, compressContent(Integer.parseInt(arg)));
+            return result;
+        }
+        if (FeedContract.METHOD_INDEX_IMAGES.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(FeedContract.EXTRA_LAST_ID,
+                    indexImages(extras.getLong(FeedContract.EXTRA_LAST_ID),
+                            Integer.parseInt(arg)));
+            return result;
+        }
+        if (!FeedContract.METHOD_BULK_INSERT_ARTICLES.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+        Parcelable[] parcelables = extras.getParcelableArray(FeedContract.EXTRA_ARTICLE_VALUES);
+        ContentValues[] values = new ContentValues[parcelables.length];
+        System.arraycopy(parcelables, 0, values, 0, parcelables.length);
+
+        Bundle result = new Bundle();
+        result.putLongArray(FeedContract.EXTRA_ROW_IDS, insertArticles(values));
+        return result;
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
+        if (sURIMatcher.match(uri) == FEEDS_ID) {
+            // Unsubscribing. The feed's articles go with it (ON DELETE CASCADE).
+            SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+            String idSelection = FeedContract.KEY_ID + " = " + ContentUris.parseId(uri);
+            String feedUrl = null;
+            Cursor c =
+                    db.query(FeedContract.FEED_TABLE_NAME,
+                            new String[] { FeedContract.KEY_FEED_URL }, idSelection, null, null,
+                            null, null);
+            try {
+                if (c.moveToFirst()) {
+                    feedUrl = c.getString(0);
+                }
+            } finally {
+                c.close();
+            }
+            int deleted = db.delete(FeedContract.FEED_TABLE_NAME, idSelection, null);
+            if (deleted > 0 && feedUrl != null) {
+                // Otherwise subscribing again would get a 304 for articles we no longer have.
+                FeedValidators.clear(getContext(), feedUrl);
+            }
+            getContext().getContentResolver().notifyChange(FeedContract.ARTICLES_URI, null);
+            return deleted;
+        }
         // TODO: catch DatabaseLockedException..
         Log.w(TAG, "Delete is not fully implemented on the FeedProvider. "
                 + "It just deletes the whole thing.");
@@ -48,9 +143,17 @@ public class FeedProvider extends ContentProvider {
         int match = sURIMatcher.match(uri);
         switch (match) {
             case ARTICLES:
+            case ARTICLE_LIST:
                 return FeedContract.CONTENT_TYPE;
             case ARTICLES_ID:
                 return FeedContract.CONTENT_ITEM_TYPE;
+            case FEEDS:
+                return FeedContract.FEED_CONTENT_TYPE;
+            case FEEDS_ID:
+                return FeedContract.FEED_CONTENT_ITEM_TYPE;
+            case ARTICLE_IMAGES:
+            case IMAGES:
+                return FeedContract.IMAGE_CONTENT_TYPE;
             default:
                 return null;
         }
@@ -59,7 +162,10 @@ public class FeedProvider extends ContentProvider {
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         Log.v(TAG, "FeedProvider got an insert request uri " + uri.toString());
-        if (sURIMatcher.match(uri) != ARTICLES) {
+        int match = sURIMatcher.match(uri);
+        if (match == FEEDS) {
+            return insertFeed(values);
+        } else if (match != ARTICLES) {
             throw new IllegalArgumentException("Unsupported URI: " + uri.toString());
         }
 
@@ -96,27 +202,89 @@ public class FeedProvider extends ContentProvider {
                 c = getArticles(projection, selection, selectionArgs, sortOrder);
                 break;
             case ARTICLES_ID:
-                c = getArticleById(ContentUris.parseId(uri));
+                c = getArticleById(ContentUris.parseId(uri), projection);
+                break;
+            case ARTICLE_LIST:
+                c = getArticleList(selection, selectionArgs);
+                break;
+            case FEEDS:
+                c = getFeeds(projection, selection, selectionArgs, sortOrder);
+                break;
+            case ARTICLE_IMAGES:
+                // The path is articles/#/images.
+                c = getArticleImages(Long.parseLong(uri.getPathSegments().get(1)), projection);
                 break;
             default:
                 return null;
         }
+        if (c.getColumnIndex(FeedContract.KEY_CONTENT) != -1) {
+            c = new ContentDecodingCursor(c);
+        }
         c.setNotificationUri(getContext().getContentResolver(), uri);
         return c;
     }
 
     @Override
     public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        Log.i(TAG, "Update is not implemented on the FeedProvider.");
-        return 0;
+        int match = sURIMatcher.match(uri);
+        if (match == IMAGES) {
+            // Nobody observes the image manifest, so there is no change notification.
+            return mOpenHelper.getWritableDatabase().update(FeedContract.IMAGE_TABLE_NAME,
+                    values, selection, selectionArgs);
+        }
+        if (match == ARTICLES_ID) {
+            String idSelection = FeedContract.KEY_ID + " = " + ContentUris.parseId(uri);
+            selection = selection == null ? idSelection : idSelection + " AND (" + selection + ")";
+        } else if (match != ARTICLES) {
+            throw new IllegalArgumentException("Unsupported URI: " + uri.toString());
+        }
+        int updated =
+                mOpenHelper.getWritableDatabase().update(FeedContract.ARTICLE_TABLE_NAME, values,
+                        selection, selectionArgs);
+        // Storing the converted content changes nothing for readers. Notifying them would only
+        // make the article display reload the article it has just shown.
+        boolean renderedOnly = values.size() == 1 && values.containsKey(FeedContract.KEY_RENDERED);
+        if (updated > 0 && !renderedOnly) {
+            // Not ARTICLES_URI: that would also reach the article display, which observes its
+            // article's URI under it. Only an update of that one article concerns it.
+            ContentResolver resolver = getContext().getContentResolver();
+            resolver.notifyChange(FeedContract.ARTICLE_LIST_URI, null);
+            if (match == ARTICLES_ID) {
+                resolver.notifyChange(uri, null);
+            }
+        }
+        return updated;
     }
 
-    private Cursor getArticleById(long id) {
+    private Cursor getArticleById(long id, String[] projection) {
         SQLiteQueryBuilder qBuilder = new SQLiteQueryBuilder();
         qBuilder.setTables(FeedContract.ARTICLE_TABLE_NAME);
         qBuilder.appendWhere("_ID=" + id);
-        return qBuilder
-                .query(mOpenHelper.getReadableDatabase(), null, null, null, null, null, null);
+        return qBuilder.query(mOpenHelper.getReadableDatabase(), projection, null, null, null,
+                null, null);
+    }
+
+    /**
+     * Returns the articles for the list, newest first. The projection is fixed so that the query
+     * can be answered from FeedContract.ARTICLE_LIST_INDEX_CREATE alone.
+     */
+    private Cursor getArticleList(String selection, String[] selectionArgs) {
+        SQLiteQueryBuilder qBuilder = new SQLiteQueryBuilder();
+        qBuilder.setTables(FeedContract.ARTICLE_TABLE_NAME);
+        return qBuilder.query(mOpenHelper.getReadableDatabase(),
+                FeedContract.ARTICLE_LIST_PROJECTION, selection, selectionArgs, null, null,
+                FeedContract.KEY_PUBLISHED_TIMESTAMP + " DESC");
+    }
+
+    /**
+     * Returns the image manifest of the article, in the order the images appear in it.
+     */
+    private Cursor getArticleImages(long articleId, String[] projection) {
+        SQLiteQueryBuilder qBuilder = new SQLiteQueryBuilder();
+        qBuilder.setTables(FeedContract.IMAGE_TABLE_NAME);
+        qBuilder.appendWhere(FeedContract.KEY_ARTICLE_ID + " = " + articleId);
+        return qBuilder.query(mOpenHelper.getReadableDatabase(), projection, null, null, null,
+                null, FeedContract.KEY_POSITION);
     }
 
     private Cursor getArticles(String[] projection, String selection, String[] selectionArgs,
@@ -127,4 +295,278 @@ public class FeedProvider extends ContentProvider {
                 selectionArgs, null, null, sortOrder);
     }
 
+    private Cursor getFeeds(String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        SQLiteQueryBuilder qBuilder = new SQLiteQueryBuilder();
+        qBuilder.setTables(FeedContract.FEED_TABLE_NAME);
+        return qBuilder.query(mOpenHelper.getReadableDatabase(), projection, selection,
+                selectionArgs, null, null, sortOrder);
+    }
+
+    /**
+     * Inserts the articles in one transaction, together with their image manifest. Articles already
+     * in the database are ignored.
+     * 
+     * @return The row id of each new article, or -1 for the ignored ones.
+     */
+    private long[] insertArticles(ContentValues[] values) {
+        Log.v(TAG, "FeedProvider got a bulk insert of " + values.length + " articles.");
+        final String[] columns = FeedContract.ARTICLE_INSERT_COLUMNS;
+        StringBuilder sql = new StringBuilder("INSERT OR IGNORE INTO ");
+        sql.append(FeedContract.ARTICLE_TABLE_NAME).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(");");
+
+        long[] rowIds = new long[values.length];
+        boolean anyInserted = false;
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        // IMMEDIATE rather than EXCLUSIVE, so that readers aren't locked out (in WAL mode) for the
+        // duration of the transaction.
+        db.beginTransactionNonExclusive();
+        try {
+            SQLiteStatement insert = db.compileStatement(sql.toString());
+            SQLiteStatement insertImage = compileImageInsert(db);
+            try {
+                for (int i = 0; i < values.length; i++) {
+                    insert.clearBindings();
+                    for (int column = 0; column < columns.length; column++) {
+                        bindValue(insert, column + 1, values[i].get(columns[column]));
+                    }
+                    // Returns -1 when the article was already there and the
+                    // insert was ignored.
+                    rowIds[i] = insert.executeInsert();
+                    if (rowIds[i] != -1) {
+                        anyInserted = true;
+                        List<String> urls = FeedContract.getImageUrls(values[i]);
+                        if (urls != null) {
+                            insertImageUrls(insertImage, rowIds[i], urls);
+                        } else {
+                            insertImages(insertImage, rowIds[i],
+                                    values[i].get(FeedContract.KEY_CONTENT));
+                        }
+                    }
+                }
+            } finally {
+                insert.close();
+                insertImage.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (anyInserted) {
+            // Only new articles were inserted, so nobody but the list is interested.
+            getContext().getContentResolver().notifyChange(FeedContract.ARTICLE_LIST_URI, null);
+        }
+        return rowIds;
+    }
+
+    /**
+     * Compresses the content of up to limit articles that were stored as plain text (before
+     * ContentCodec), in one transaction. Readers don't notice the change, so there is no change
+     * notification.
+     * 
+     * @return The number of articles compressed.
+     */
+    private int compressContent(int limit) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int compressed = 0;
+        db.beginTransactionNonExclusive();
+        try {
+            Cursor c =
+                    db.query(FeedContract.ARTICLE_TABLE_NAME, new String[] { FeedContract.KEY_ID,
+                            FeedContract.KEY_CONTENT }, "typeof(" + FeedContract.KEY_CONTENT
+                            + ") = 'text'", null, null, null, null, Integer.toString(limit));
+            SQLiteStatement update =
+                    db.compileStatement("UPDATE " + FeedContract.ARTICLE_TABLE_NAME + " SET "
+                            + FeedContract.KEY_CONTENT + " = ? WHERE " + FeedContract.KEY_ID
+                            + " = ?");
+            try {
+                while (c.moveToNext()) {
+                    update.clearBindings();
+                    bindValue(update, 1, ContentCodec.encode(c.getString(1)));
+                    update.bindLong(2, c.getLong(0));
+                    update.execute();
+                    compressed++;
+                }
+            } finally {
+                update.close();
+                c.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return compressed;
+    }
+
+    /**
+     * Fills in the image manifest of up to limit articles with _id greater than afterId (in _id
+     * order) that have no images in it yet, in one transaction. Articles without images are
+     * looked at again each time, which is why the caller goes through them by _id.
+     * 
+     * @return The _id of the last article looked at, or -1 if there were none.
+     */
+    private long indexImages(long afterId, int limit) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long lastId = -1;
+        int indexed = 0;
+        db.beginTransactionNonExclusive();
+        try {
+            Cursor c =
+                    db.query(FeedContract.ARTICLE_TABLE_NAME, new String[] { FeedContract.KEY_ID,
+                            FeedContract.KEY_CONTENT }, FeedContract.KEY_ID + " > " + afterId
+                            + " AND NOT EXISTS (SELECT 1 FROM " + FeedContract.IMAGE_TABLE_NAME
+                            + " WHERE " + FeedContract.KEY_ARTICLE_ID + " = "
+                            + FeedContract.ARTICLE_TABLE_NAME + "." + FeedContract.KEY_ID + ")",
+                            null, null, null, FeedContract.KEY_ID, Integer.toString(limit));
+            SQLiteStatement insertImage = compileImageInsert(db);
+            try {
+                while (c.moveToNext()) {
+                    lastId = c.getLong(0);
+                    Object content =
+                            c.getType(1) == Cursor.FIELD_TYPE_BLOB ? c.getBlob(1) : c.getString(1);
+                    indexed += insertImages(insertImage, lastId, content);
+                }
+            } finally {
+                insertImage.close();
+                c.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.v(TAG, "Indexed " + indexed + " images of articles up to " + lastId + ".");
+        return lastId;
+    }
+
+    private static SQLiteStatement compileImageInsert(SQLiteDatabase db) {
+        return db.compileStatement("INSERT OR IGNORE INTO " + FeedContract.IMAGE_TABLE_NAME + " ("
+                + FeedContract.KEY_ARTICLE_ID + ", " + FeedContract.KEY_POSITION + ", "
+                + FeedContract.KEY_IMAGE_URL + ") VALUES (?, ?, ?);");
+    }
+
+    /**
+     * Adds the images in the article's content to the image manifest. This decodes the content and
+     * searches it, so it's only for articles that come without their image URLs (see
+     * FeedContract.putImageUrls()), such as the ones stored before there was a manifest.
+     * 
+     * @param content
+     *            The content as stored (see ContentCodec), or as a String.
+     * @return The number of images.
+     */
+    private static int insertImages(SQLiteStatement insertImage, long articleId, Object content) {
+        if (content == null) {
+            return 0;
+        }
+        String html =
+                content instanceof byte[] ? ContentCodec.decode((byte[]) content) : content
+                        .toString();
+        List<String> urls = ImageGetter.extractImageUrls(html);
+        insertImageUrls(insertImage, articleId, urls);
+        return urls.size();
+    }
+
+    /**
+     * Adds the images to the image manifest of the article, in the given order.
+     */
+    private static void insertImageUrls(SQLiteStatement insertImage, long articleId,
+            List<String> urls) {
+        for (int position = 0; position < urls.size(); position++) {
+            insertImage.clearBindings();
+            insertImage.bindLong(1, articleId);
+            insertImage.bindLong(2, position);
+            insertImage.bindString(3, urls.get(position));
+            insertImage.executeInsert();
+        }
+    }
+
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Long || value instanceof Integer) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    /**
+     * Subscribes to a feed. Returns null if we're already subscribed.
+     */
+    private Uri insertFeed(ContentValues values) {
+        long rowId =
+                mOpenHelper.getWritableDatabase().insertWithOnConflict(
+                        FeedContract.FEED_TABLE_NAME, null, values,
+                        SQLiteDatabase.CONFLICT_IGNORE);
+
+        Uri result = null;
+        if (rowId > 0) {
+            result = ContentUris.withAppendedId(FeedContract.FEEDS_URI, rowId);
+            getContext().getContentResolver().notifyChange(result, null);
+        }
+        return result;
+    }
+
+    /**
+     * Serves the content column decoded (see ContentCodec), as a string. The other columns are
+     * passed through.
+     */
+    private static class ContentDecodingCursor extends CursorWrapper {
+        private final int mContentColumn;
+
+        /**
+         * The decoded content of the row at mDecodedPosition. Decoding is not cheap, so we don't
+         * want to do it again for every getString().
+         */
+        private String mDecoded;
+        private int mDecodedPosition = -1;
+
+        public ContentDecodingCursor(Cursor cursor) {
+            super(cursor);
+            mContentColumn = cursor.getColumnIndex(FeedContract.KEY_CONTENT);
+        }
+
+        @Override
+        public byte[] getBlob(int columnIndex) {
+            if (columnIndex != mContentColumn || isNull(columnIndex)) {
+                return super.getBlob(columnIndex);
+            }
+            try {
+                return getString(columnIndex).getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            if (columnIndex != mContentColumn || super.getType(columnIndex) != FIELD_TYPE_BLOB) {
+                return super.getString(columnIndex);
+            }
+            if (mDecodedPosition != getPosition()) {
+                mDecoded = ContentCodec.decode(super.getBlob(columnIndex));
+                mDecodedPosition = getPosition();
+            }
+            return mDecoded;
+        }
+
+        @Override
+        public int getType(int columnIndex) {
+            int type = super.getType(columnIndex);
+            if (columnIndex == mContentColumn && type == FIELD_TYPE_BLOB) {
+                return FIELD_TYPE_STRING;
+            }
+            return type;
+        }
+    }
 }
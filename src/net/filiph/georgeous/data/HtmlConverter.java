@@ -0,0 +1,910 @@
+package net.filiph.georgeous.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Converts the HTML content of an article to RenderedContent (the text and its spans), in one pass
+ * over the string. It replaces Html.fromHtml(), which runs the content through a full SAX parser
+ * and allocates a lot on the way.
+ *
+ * Only the tags that blog posts actually use are supported: p, div, a, b, strong, i, em, u,
+ * h1-h6, ul, ol, li, img, pre, code, blockquote and br. The content of style and script is
+ * dropped. Other tags are ignored, but their text is kept. As in HTML, an li without an end tag
+ * ends at the next li of its list, and a p at the next p.
+ *
+ * Only the span table is collected here. The spans themselves are made by
+ * RenderedContent.toSpanned(), so the conversion can be done (and stored) at ingest. Any change
+ * to what this makes of the HTML needs RenderedContent.FORMAT_VERSION increased.
+ */
+public class HtmlConverter {
+    /**
+     * The longest character reference we decode (e.g. "&#x10FFFF;").
+     */
+    private static final int MAX_ENTITY_LENGTH = 10;
+
+    private static final int TAG_PARAGRAPH = 1;
+    private static final int TAG_HEADING = 2;
+    private static final int TAG_BLOCKQUOTE = 3;
+    private static final int TAG_UNORDERED_LIST = 4;
+    private static final int TAG_ORDERED_LIST = 5;
+    private static final int TAG_LIST_ITEM = 6;
+    private static final int TAG_PRE = 7;
+    private static final int TAG_CODE = 8;
+    private static final int TAG_BOLD = 9;
+    private static final int TAG_ITALIC = 10;
+    private static final int TAG_UNDERLINE = 11;
+    private static final int TAG_LINK = 12;
+    private static final int TAG_BREAK = 13;
+    private static final int TAG_IMAGE = 14;
+    /**
+     * Tags whose content isn't text (style, script), and is dropped.
+     */
+    private static final int TAG_RAW = 15;
+    /**
+     * div. Shown like p, but unlike p, it isn't closed by the next p.
+     */
+    private static final int TAG_DIV = 16;
+
+    private static final Map<String, Integer> sTags = new HashMap<String, Integer>();
+    private static final Map<String, Character> sEntities = new HashMap<String, Character>();
+
+    static {
+        sTags.put("p", TAG_PARAGRAPH);
+        sTags.put("div", TAG_DIV);
+        for (int level = 1; level <= RenderedContent.HEADING_SIZES.length; level++) {
+            sTags.put("h" + level, TAG_HEADING);
+        }
+        sTags.put("blockquote", TAG_BLOCKQUOTE);
+        sTags.put("ul", TAG_UNORDERED_LIST);
+        sTags.put("ol", TAG_ORDERED_LIST);
+        sTags.put("li", TAG_LIST_ITEM);
+        sTags.put("pre", TAG_PRE);
+        sTags.put("code", TAG_CODE);
+        sTags.put("tt", TAG_CODE);
+        sTags.put("b", TAG_BOLD);
+        sTags.put("strong", TAG_BOLD);
+        sTags.put("i", TAG_ITALIC);
+        sTags.put("em", TAG_ITALIC);
+        sTags.put("cite", TAG_ITALIC);
+        sTags.put("u", TAG_UNDERLINE);
+        sTags.put("a", TAG_LINK);
+        sTags.put("br", TAG_BREAK);
+        sTags.put("img", TAG_IMAGE);
+        sTags.put("style", TAG_RAW);
+        sTags.put("script", TAG_RAW);
+
+        // All character entity references of HTML 4: the special characters, the ISO 8859-1
+        // characters and the symbols (Greek letters included). And apos, which is XML's.
+        sEntities.put("apos", '\'');
+        sEntities.put("quot", '"');
+        sEntities.put("amp", '&');
+        sEntities.put("lt", '<');
+        sEntities.put("gt", '>');
+        sEntities.put("OElig", '\u0152');
+        sEntities.put("oelig", '\u0153');
+        sEntities.put("Scaron", '\u0160');
+        sEntities.put("scaron", '\u0161');
+        sEntities.put("Yuml", '\u0178');
+        sEntities.put("circ", '\u02c6');
+        sEntities.put("tilde", '\u02dc');
+        sEntities.put("ensp", '\u2002');
+        sEntities.put("emsp", '\u2003');
+        sEntities.put("thinsp", '\u2009');
+        sEntities.put("zwnj", '\u200c');
+        sEntities.put("zwj", '\u200d');
+        sEntities.put("lrm", '\u200e');
+        sEntities.put("rlm", '\u200f');
+        sEntities.put("ndash", '\u2013');
+        sEntities.put("mdash", '\u2014');
+        sEntities.put("lsquo", '\u2018');
+        sEntities.put("rsquo", '\u2019');
+        sEntities.put("sbquo", '\u201a');
+        sEntities.put("ldquo", '\u201c');
+        sEntities.put("rdquo", '\u201d');
+        sEntities.put("bdquo", '\u201e');
+        sEntities.put("dagger", '\u2020');
+        sEntities.put("Dagger", '\u2021');
+        sEntities.put("permil", '\u2030');
+        sEntities.put("lsaquo", '\u2039');
+        sEntities.put("rsaquo", '\u203a');
+        sEntities.put("euro", '\u20ac');
+        sEntities.put("nbsp", '\u00a0');
+        sEntities.put("iexcl", '\u00a1');
+        sEntities.put("cent", '\u00a2');
+        sEntities.put("pound", '\u00a3');
+        sEntities.put("curren", '\u00a4');
+        sEntities.put("yen", '\u00a5');
+        sEntities.put("brvbar", '\u00a6');
+        sEntities.put("sect", '\u00a7');
+        sEntities.put("uml", '\u00a8');
+        sEntities.put("copy", '\u00a9');
+        sEntities.put("ordf", '\u00aa');
+        sEntities.put("laquo", '\u00ab');
+        sEntities.put("not", '\u00ac');
+        sEntities.put("shy", '\u00ad');
+        sEntities.put("reg", '\u00ae');
+        sEntities.put("macr", '\u00af');
+        sEntities.put("deg", '\u00b0');
+        sEntities.put("plusmn", '\u00b1');
+        sEntities.put("sup2", '\u00b2');
+        sEntities.put("sup3", '\u00b3');
+        sEntities.put("acute", '\u00b4');
+        sEntities.put("micro", '\u00b5');
+        sEntities.put("para", '\u00b6');
+        sEntities.put("middot", '\u00b7');
+        sEntities.put("cedil", '\u00b8');
+        sEntities.put("sup1", '\u00b9');
+        sEntities.put("ordm", '\u00ba');
+        sEntities.put("raquo", '\u00bb');
+        sEntities.put("frac14", '\u00bc');
+        sEntities.put("frac12", '\u00bd');
+        sEntities.put("frac34", '\u00be');
+        sEntities.put("iquest", '\u00bf');
+        sEntities.put("Agrave", '\u00c0');
+        sEntities.put("Aacute", '\u00c1');
+        sEntities.put("Acirc", '\u00c2');
+        sEntities.put("Atilde", '\u00c3');
+        sEntities.put("Auml", '\u00c4');
+        sEntities.put("Aring", '\u00c5');
+        sEntities.put("AElig", '\u00c6');
+        sEntities.put("Ccedil", '\u00c7');
+        sEntities.put("Egrave", '\u00c8');
+        sEntities.put("Eacute", '\u00c9');
+        sEntities.put("Ecirc", '\u00ca');
+        sEntities.put("Euml", '\u00cb');
+        sEntities.put("Igrave", '\u00cc');
+        sEntities.put("Iacute", '\u00cd');
+        sEntities.put("Icirc", '\u00ce');
+        sEntities.put("Iuml", '\u00cf');
+        sEntities.put("ETH", '\u00d0');
+        sEntities.put("Ntilde", '\u00d1');
+        sEntities.put("Ograve", '\u00d2');
+        sEntities.put("Oacute", '\u00d3');
+        sEntities.put("Ocirc", '\u00d4');
+        sEntities.put("Otilde", '\u00d5');
+        sEntities.put("Ouml", '\u00d6');
+        sEntities.put("times", '\u00d7');
+        sEntities.put("Oslash", '\u00d8');
+        sEntities.put("Ugrave", '\u00d9');
+        sEntities.put("Uacute", '\u00da');
+        sEntities.put("Ucirc", '\u00db');
+        sEntities.put("Uuml", '\u00dc');
+        sEntities.put("Yacute", '\u00dd');
+        sEntities.put("THORN", '\u00de');
+        sEntities.put("szlig", '\u00df');
+        sEntities.put("agrave", '\u00e0');
+        sEntities.put("aacute", '\u00e1');
+        sEntities.put("acirc", '\u00e2');
+        sEntities.put("atilde", '\u00e3');
+        sEntities.put("auml", '\u00e4');
+        sEntities.put("aring", '\u00e5');
+        sEntities.put("aelig", '\u00e6');
+        sEntities.put("ccedil", '\u00e7');
+        sEntities.put("egrave", '\u00e8');
+        sEntities.put("eacute", '\u00e9');
+        sEntities.put("ecirc", '\u00ea');
+        sEntities.put("euml", '\u00eb');
+        sEntities.put("igrave", '\u00ec');
+        sEntities.put("iacute", '\u00ed');
+        sEntities.put("icirc", '\u00ee');
+        sEntities.put("iuml", '\u00ef');
+        sEntities.put("eth", '\u00f0');
+        sEntities.put("ntilde", '\u00f1');
+        sEntities.put("ograve", '\u00f2');
+        sEntities.put("oacute", '\u00f3');
+        sEntities.put("ocirc", '\u00f4');
+        sEntities.put("otilde", '\u00f5');
+        sEntities.put("ouml", '\u00f6');
+        sEntities.put("divide", '\u00f7');
+        sEntities.put("oslash", '\u00f8');
+        sEntities.put("ugrave", '\u00f9');
+        sEntities.put("uacute", '\u00fa');
+        sEntities.put("ucirc", '\u00fb');
+        sEntities.put("uuml", '\u00fc');
+        sEntities.put("yacute", '\u00fd');
+        sEntities.put("thorn", '\u00fe');
+        sEntities.put("yuml", '\u00ff');
+        sEntities.put("fnof", '\u0192');
+        sEntities.put("Alpha", '\u0391');
+        sEntities.put("Beta", '\u0392');
+        sEntities.put("Gamma", '\u0393');
+        sEntities.put("Delta", '\u0394');
+        sEntities.put("Epsilon", '\u0395');
+        sEntities.put("Zeta", '\u0396');
+        sEntities.put("Eta", '\u0397');
+        sEntities.put("Theta", '\u0398');
+        sEntities.put("Iota", '\u0399');
+        sEntities.put("Kappa", '\u039a');
+        sEntities.put("Lambda", '\u039b');
+        sEntities.put("Mu", '\u039c');
+        sEntities.put("Nu", '\u039d');
+        sEntities.put("Xi", '\u039e');
+        sEntities.put("Omicron", '\u039f');
+        sEntities.put("Pi", '\u03a0');
+        sEntities.put("Rho", '\u03a1');
+        sEntities.put("Sigma", '\u03a3');
+        sEntities.put("Tau", '\u03a4');
+        sEntities.put("Upsilon", '\u03a5');
+        sEntities.put("Phi", '\u03a6');
+        sEntities.put("Chi", '\u03a7');
+        sEntities.put("Psi", '\u03a8');
+        sEntities.put("Omega", '\u03a9');
+        sEntities.put("alpha", '\u03b1');
+        sEntities.put("beta", '\u03b2');
+        sEntities.put("gamma", '\u03b3');
+        sEntities.put("delta", '\u03b4');
+        sEntities.put("epsilon", '\u03b5');
+        sEntities.put("zeta", '\u03b6');
+        sEntities.put("eta", '\u03b7');
+        sEntities.put("theta", '\u03b8');
+        sEntities.put("iota", '\u03b9');
+        sEntities.put("kappa", '\u03ba');
+        sEntities.put("lambda", '\u03bb');
+        sEntities.put("mu", '\u03bc');
+        sEntities.put("nu", '\u03bd');
+        sEntities.put("xi", '\u03be');
+        sEntities.put("omicron", '\u03bf');
+        sEntities.put("pi", '\u03c0');
+        sEntities.put("rho", '\u03c1');
+        sEntities.put("sigmaf", '\u03c2');
+        sEntities.put("sigma", '\u03c3');
+        sEntities.put("tau", '\u03c4');
+        sEntities.put("upsilon", '\u03c5');
+        sEntities.put("phi", '\u03c6');
+        sEntities.put("chi", '\u03c7');
+        sEntities.put("psi", '\u03c8');
+        sEntities.put("omega", '\u03c9');
+        sEntities.put("thetasym", '\u03d1');
+        sEntities.put("upsih", '\u03d2');
+        sEntities.put("piv", '\u03d6');
+        sEntities.put("bull", '\u2022');
+        sEntities.put("hellip", '\u2026');
+        sEntities.put("prime", '\u2032');
+        sEntities.put("Prime", '\u2033');
+        sEntities.put("oline", '\u203e');
+        sEntities.put("frasl", '\u2044');
+        sEntities.put("image", '\u2111');
+        sEntities.put("weierp", '\u2118');
+        sEntities.put("real", '\u211c');
+        sEntities.put("trade", '\u2122');
+        sEntities.put("alefsym", '\u2135');
+        sEntities.put("larr", '\u2190');
+        sEntities.put("uarr", '\u2191');
+        sEntities.put("rarr", '\u2192');
+        sEntities.put("darr", '\u2193');
+        sEntities.put("harr", '\u2194');
+        sEntities.put("crarr", '\u21b5');
+        sEntities.put("lArr", '\u21d0');
+        sEntities.put("uArr", '\u21d1');
+        sEntities.put("rArr", '\u21d2');
+        sEntities.put("dArr", '\u21d3');
+        sEntities.put("hArr", '\u21d4');
+        sEntities.put("forall", '\u2200');
+        sEntities.put("part", '\u2202');
+        sEntities.put("exist", '\u2203');
+        sEntities.put("empty", '\u2205');
+        sEntities.put("nabla", '\u2207');
+        sEntities.put("isin", '\u2208');
+        sEntities.put("notin", '\u2209');
+        sEntities.put("ni", '\u220b');
+        sEntities.put("prod", '\u220f');
+        sEntities.put("sum", '\u2211');
+        sEntities.put("minus", '\u2212');
+        sEntities.put("lowast", '\u2217');
+        sEntities.put("radic", '\u221a');
+        sEntities.put("prop", '\u221d');
+        sEntities.put("infin", '\u221e');
+        sEntities.put("ang", '\u2220');
+        sEntities.put("and", '\u2227');
+        sEntities.put("or", '\u2228');
+        sEntities.put("cap", '\u2229');
+        sEntities.put("cup", '\u222a');
+        sEntities.put("int", '\u222b');
+        sEntities.put("there4", '\u2234');
+        sEntities.put("sim", '\u223c');
+        sEntities.put("cong", '\u2245');
+        sEntities.put("asymp", '\u2248');
+        sEntities.put("ne", '\u2260');
+        sEntities.put("equiv", '\u2261');
+        sEntities.put("le", '\u2264');
+        sEntities.put("ge", '\u2265');
+        sEntities.put("sub", '\u2282');
+        sEntities.put("sup", '\u2283');
+        sEntities.put("nsub", '\u2284');
+        sEntities.put("sube", '\u2286');
+        sEntities.put("supe", '\u2287');
+        sEntities.put("oplus", '\u2295');
+        sEntities.put("otimes", '\u2297');
+        sEntities.put("perp", '\u22a5');
+        sEntities.put("sdot", '\u22c5');
+        sEntities.put("lceil", '\u2308');
+        sEntities.put("rceil", '\u2309');
+        sEntities.put("lfloor", '\u230a');
+        sEntities.put("rfloor", '\u230b');
+        sEntities.put("lang", '\u2329');
+        sEntities.put("rang", '\u232a');
+        sEntities.put("loz", '\u25ca');
+        sEntities.put("spades", '\u2660');
+        sEntities.put("clubs", '\u2663');
+        sEntities.put("hearts", '\u2665');
+        sEntities.put("diams", '\u2666');
+    }
+
+    /**
+     * Converts the HTML. Each img with a src becomes a U+FFFC character with a SPAN_IMAGE span.
+     */
+    public static RenderedContent parse(String html) {
+        return new HtmlConverter(html).convert();
+    }
+
+    /**
+     * Decodes the character references (such as "&amp;amp;") in the text, e.g. an attribute
+     * value.
+     */
+    static String decodeEntities(String text) {
+        if (text.indexOf('&') == -1) {
+            return text;
+        }
+        StringBuilder decoded = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '&') {
+                int next = decodeEntity(text, i, text.length(), decoded);
+                if (next != -1) {
+                    i = next - 1;
+                    continue;
+                }
+            }
+            decoded.append(c);
+        }
+        return decoded.toString();
+    }
+
+    /**
+     * Decodes the character reference that starts (with '&') at start, and appends it to out.
+     *
+     * @return The index after the reference, or -1 if there is no reference we know (and nothing
+     *         was appended).
+     */
+    private static int decodeEntity(String html, int start, int end, StringBuilder out) {
+        int semicolon = -1;
+        int limit = Math.min(end, start + MAX_ENTITY_LENGTH);
+        for (int i = start + 1; i < limit; i++) {
+            char c = html.charAt(i);
+            if (c == ';') {
+                semicolon = i;
+                break;
+            }
+            if (!Character.isLetterOrDigit(c) && c != '#') {
+                break;
+            }
+        }
+        if (semicolon == -1 || semicolon == start + 1) {
+            return -1;
+        }
+        if (html.charAt(start + 1) == '#') {
+            int codePoint;
+            try {
+                char x = html.charAt(start + 2);
+                if (x == 'x' || x == 'X') {
+                    codePoint = Integer.parseInt(html.substring(start + 3, semicolon), 16);
+                } else {
+                    codePoint = Integer.parseInt(html.substring(start + 2, semicolon));
+                }
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+            if (codePoint <= 0 || !Character.isValidCodePoint(codePoint)) {
+                return -1;
+            }
+            out.appendCodePoint(codePoint);
+        } else {
+            Character c = sEntities.get(html.substring(start + 1, semicolon));
+            if (c == null) {
+                return -1;
+            }
+            out.append(c.charValue());
+        }
+        return semicolon + 1;
+    }
+
+    private static boolean isInline(int tag) {
+        return tag == TAG_BOLD || tag == TAG_ITALIC || tag == TAG_UNDERLINE || tag == TAG_CODE
+                || tag == TAG_LINK;
+    }
+
+    private static boolean isList(int tag) {
+        return tag == TAG_UNORDERED_LIST || tag == TAG_ORDERED_LIST;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f';
+    }
+
+    private HtmlConverter(String html) {
+        mHtml = html;
+        mText = new StringBuilder(html.length() / 2);
+    }
+
+    private final String mHtml;
+
+    /**
+     * The text converted so far.
+     */
+    private final StringBuilder mText;
+
+    /**
+     * The spans found so far, RenderedContent.SPAN_FIELDS ints each, and the string (link or image
+     * URL) of each.
+     */
+    private int[] mSpans = new int[64 * RenderedContent.SPAN_FIELDS];
+    private String[] mSpanStrings = new String[64];
+    private int mSpanCount = 0;
+
+    /**
+     * The elements opened and not yet closed, innermost last.
+     */
+    private final List<Element> mOpen = new ArrayList<Element>();
+
+    /**
+     * The attributes of the current tag, if it is one whose attributes we need (a, img).
+     */
+    private final Map<String, String> mAttributes = new HashMap<String, String>();
+    private boolean mSelfClosing;
+
+    /**
+     * Number of open pre elements. Whitespace in them is kept.
+     */
+    private int mPreDepth = 0;
+
+    /**
+     * Position in mHtml.
+     */
+    private int mPos = 0;
+
+    private RenderedContent convert() {
+        int length = mHtml.length();
+        while (mPos < length) {
+            int tagStart = mHtml.indexOf('<', mPos);
+            if (tagStart == -1) {
+                tagStart = length;
+            }
+            appendText(mPos, tagStart);
+            mPos = tagStart;
+            if (mPos < length) {
+                parseMarkup();
+            }
+        }
+        while (!mOpen.isEmpty()) {
+            closeElement();
+        }
+        return new RenderedContent(mText.toString(), mSpanCount, mSpans, mSpanStrings);
+    }
+
+    /**
+     * Appends the text between the given positions in mHtml, decoding character references and
+     * (outside of pre) collapsing whitespace.
+     */
+    private void appendText(int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = mHtml.charAt(i);
+            if (c == '&') {
+                int next = decodeEntity(mHtml, i, end, mText);
+                if (next != -1) {
+                    i = next - 1;
+                    continue;
+                }
+            } else if (isWhitespace(c)) {
+                if (mPreDepth > 0) {
+                    if (c != '\r') {
+                        mText.append(c);
+                    }
+                    continue;
+                }
+                int len = mText.length();
+                if (len > 0 && !isWhitespace(mText.charAt(len - 1))) {
+                    mText.append(' ');
+                }
+                continue;
+            }
+            mText.append(c);
+        }
+    }
+
+    /**
+     * Handles the markup starting with the '<' at mPos, and moves mPos after it.
+     */
+    private void parseMarkup() {
+        int length = mHtml.length();
+        if (mHtml.startsWith("<!--", mPos)) {
+            int end = mHtml.indexOf("-->", mPos + 4);
+            mPos = end == -1 ? length : end + 3;
+            return;
+        }
+        int next = mPos + 1;
+        if (next < length && (mHtml.charAt(next) == '!' || mHtml.charAt(next) == '?')) {
+            // Doctype, CDATA or processing instruction.
+            int end = mHtml.indexOf('>', next);
+            mPos = end == -1 ? length : end + 1;
+            return;
+        }
+
+        boolean closing = next < length && mHtml.charAt(next) == '/';
+        int nameStart = closing ? next + 1 : next;
+        int nameEnd = nameStart;
+        while (nameEnd < length && Character.isLetterOrDigit(mHtml.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        if (nameEnd == nameStart || !Character.isLetter(mHtml.charAt(nameStart))) {
+            // Not a tag, just a '<' in the text.
+            mText.append('<');
+            mPos++;
+            return;
+        }
+
+        String name = mHtml.substring(nameStart, nameEnd).toLowerCase(Locale.US);
+        Integer tag = sTags.get(name);
+        boolean needAttributes = tag != null && (tag == TAG_LINK || tag == TAG_IMAGE);
+        mPos = parseAttributes(nameEnd, needAttributes);
+        if (tag == null) {
+            return;
+        }
+        if (closing) {
+            handleEndTag(tag);
+        } else {
+            handleStartTag(tag, name);
+            if (mSelfClosing) {
+                handleEndTag(tag);
+            }
+        }
+    }
+
+    /**
+     * Reads the attributes of the tag, up to and including the closing '>'. Sets mSelfClosing.
+     *
+     * @param keep
+     *            Whether to put the attributes in mAttributes.
+     * @return The position after the tag.
+     */
+    private int parseAttributes(int pos, boolean keep) {
+        mAttributes.clear();
+        mSelfClosing = false;
+        int length = mHtml.length();
+        while (pos < length) {
+            char c = mHtml.charAt(pos);
+            if (c == '>') {
+                return pos + 1;
+            }
+            if (isWhitespace(c) || c == '/') {
+                mSelfClosing = c == '/';
+                pos++;
+                continue;
+            }
+            mSelfClosing = false;
+
+            int nameStart = pos;
+            while (pos < length && !isWhitespace(c = mHtml.charAt(pos)) && c != '=' && c != '>'
+                    && c != '/') {
+                pos++;
+            }
+            int nameEnd = pos;
+            while (pos < length && isWhitespace(mHtml.charAt(pos))) {
+                pos++;
+            }
+            String value = "";
+            if (pos < length && mHtml.charAt(pos) == '=') {
+                pos++;
+                while (pos < length && isWhitespace(mHtml.charAt(pos))) {
+                    pos++;
+                }
+                int valueStart;
+                int valueEnd;
+                if (pos < length && (mHtml.charAt(pos) == '"' || mHtml.charAt(pos) == '\'')) {
+                    valueStart = pos + 1;
+                    valueEnd = mHtml.indexOf(mHtml.charAt(pos), valueStart);
+                    if (valueEnd == -1) {
+                        valueEnd = length;
+                    }
+                    pos = Math.min(valueEnd + 1, length);
+                } else {
+                    valueStart = pos;
+                    while (pos < length && !isWhitespace(c = mHtml.charAt(pos)) && c != '>') {
+                        pos++;
+                    }
+                    valueEnd = pos;
+                }
+                if (keep) {
+                    value = decodeEntities(mHtml.substring(valueStart, valueEnd));
+                }
+            }
+            if (keep && nameEnd > nameStart) {
+                mAttributes.put(mHtml.substring(nameStart, nameEnd).toLowerCase(Locale.US), value);
+            }
+        }
+        return length;
+    }
+
+    private void handleStartTag(int tag, String name) {
+        switch (tag) {
+            case TAG_BREAK:
+                mText.append('\n');
+                return;
+            case TAG_IMAGE:
+                appendImage(mAttributes.get("src"));
+                return;
+            case TAG_RAW:
+                if (!mSelfClosing) {
+                    skipRawText(name);
+                }
+                return;
+            case TAG_PARAGRAPH:
+                closeUnclosedSibling(tag);
+                breakLine(2);
+                break;
+            case TAG_DIV:
+            case TAG_HEADING:
+            case TAG_BLOCKQUOTE:
+            case TAG_PRE:
+                breakLine(2);
+                break;
+            case TAG_UNORDERED_LIST:
+            case TAG_ORDERED_LIST:
+                // A list inside a list item goes on the next line.
+                breakLine(findList() == null ? 2 : 1);
+                break;
+            case TAG_LIST_ITEM:
+                closeUnclosedSibling(tag);
+                breakLine(1);
+                break;
+        }
+
+        Element element = new Element(tag, mText.length());
+        switch (tag) {
+            case TAG_HEADING:
+                element.level = name.charAt(1) - '1';
+                break;
+            case TAG_LINK:
+                element.href = mAttributes.get("href");
+                break;
+            case TAG_LIST_ITEM:
+                Element list = findList();
+                if (list != null && list.tag == TAG_ORDERED_LIST) {
+                    list.items += 1;
+                    mText.append(list.items).append(". ");
+                }
+                break;
+            case TAG_PRE:
+                mPreDepth += 1;
+                // A newline right after <pre> is not part of the content.
+                if (mHtml.startsWith("\r\n", mPos)) {
+                    mPos += 2;
+                } else if (mHtml.startsWith("\n", mPos)) {
+                    mPos += 1;
+                }
+                break;
+        }
+        mOpen.add(element);
+    }
+
+    /**
+     * Closes the innermost open element of the tag, and any elements opened in it.
+     */
+    private void handleEndTag(int tag) {
+        for (int i = mOpen.size() - 1; i >= 0; i--) {
+            if (mOpen.get(i).tag == tag) {
+                while (mOpen.size() > i) {
+                    closeElement();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Closes an li or p that is still open when the next one starts, since it can't contain it.
+     * Only an li of the same list, or a p in the same block, is closed: an li in a nested list
+     * stays inside its item, and so does a p inside e.g. a blockquote in a p.
+     */
+    private void closeUnclosedSibling(int tag) {
+        for (int i = mOpen.size() - 1; i >= 0; i--) {
+            int open = mOpen.get(i).tag;
+            if (open == tag) {
+                while (mOpen.size() > i) {
+                    closeElement();
+                }
+                return;
+            }
+            if (tag == TAG_LIST_ITEM ? isList(open) : !isInline(open)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Closes the innermost open element.
+     */
+    private void closeElement() {
+        Element element = mOpen.remove(mOpen.size() - 1);
+        int start = element.start;
+        switch (element.tag) {
+            case TAG_BOLD:
+                addSpan(RenderedContent.SPAN_BOLD, start, 0, null);
+                break;
+            case TAG_ITALIC:
+                addSpan(RenderedContent.SPAN_ITALIC, start, 0, null);
+                break;
+            case TAG_UNDERLINE:
+                addSpan(RenderedContent.SPAN_UNDERLINE, start, 0, null);
+                break;
+            case TAG_CODE:
+                addSpan(RenderedContent.SPAN_MONOSPACE, start, 0, null);
+                break;
+            case TAG_LINK:
+                if (element.href != null) {
+                    addSpan(RenderedContent.SPAN_LINK, start, 0, element.href);
+                }
+                break;
+            case TAG_HEADING:
+                addSpan(RenderedContent.SPAN_HEADING, start, element.level, null);
+                addSpan(RenderedContent.SPAN_BOLD, start, 0, null);
+                breakLine(2);
+                break;
+            case TAG_PARAGRAPH:
+            case TAG_DIV:
+                breakLine(2);
+                break;
+            case TAG_BLOCKQUOTE:
+                // Without the line breaks at its end (e.g. of a p in it), or the quote stripe would
+                // run on into the blank line after it.
+                int end = mText.length();
+                while (end > start && mText.charAt(end - 1) == '\n') {
+                    end--;
+                }
+                addSpan(RenderedContent.SPAN_QUOTE, start, end, 0, null);
+                breakLine(2);
+                break;
+            case TAG_PRE:
+                mPreDepth -= 1;
+                addSpan(RenderedContent.SPAN_MONOSPACE, start, 0, null);
+                breakLine(2);
+                break;
+            case TAG_UNORDERED_LIST:
+            case TAG_ORDERED_LIST:
+                breakLine(findList() == null ? 2 : 1);
+                break;
+            case TAG_LIST_ITEM:
+                breakLine(1);
+                Element list = findList();
+                if (list == null || list.tag == TAG_UNORDERED_LIST) {
+                    addSpan(RenderedContent.SPAN_BULLET, start, 0, null);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Returns the innermost open ul or ol, or null if there is none.
+     */
+    private Element findList() {
+        for (int i = mOpen.size() - 1; i >= 0; i--) {
+            if (isList(mOpen.get(i).tag)) {
+                return mOpen.get(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Ends the line, so that the text ends with (at least) the given number of newlines. Nothing
+     * is added at the start of the text.
+     */
+    private void breakLine(int newlines) {
+        int len = mText.length();
+        if (len == 0) {
+            return;
+        }
+        int existing = 0;
+        while (existing < newlines && existing < len && mText.charAt(len - 1 - existing) == '\n') {
+            existing++;
+        }
+        for (int i = existing; i < newlines; i++) {
+            mText.append('\n');
+        }
+    }
+
+    private void appendImage(String source) {
+        if (source == null) {
+            return;
+        }
+        int start = mText.length();
+        mText.append('\ufffc');
+        addSpan(RenderedContent.SPAN_IMAGE, start, 0, source);
+    }
+
+    /**
+     * Skips to after the closing tag of the element (e.g. style) whose content is not text.
+     */
+    private void skipRawText(String name) {
+        int length = mHtml.length();
+        int pos = mPos;
+        while (true) {
+            int close = mHtml.indexOf("</", pos);
+            if (close == -1) {
+                mPos = length;
+                return;
+            }
+            if (mHtml.regionMatches(true, close + 2, name, 0, name.length())) {
+                int end = mHtml.indexOf('>', close);
+                mPos = end == -1 ? length : end + 1;
+                return;
+            }
+            pos = close + 2;
+        }
+    }
+
+    /**
+     * Adds the span from start to the end of the text so far, unless that's empty.
+     *
+     * @param type
+     *            One of the RenderedContent.SPAN_ types.
+     */
+    private void addSpan(int type, int start, int argument, String string) {
+        addSpan(type, start, mText.length(), argument, string);
+    }
+
+    /**
+     * Adds the span from start to end, unless that's empty.
+     */
+    private void addSpan(int type, int start, int end, int argument, String string) {
+        if (end <= start) {
+            return;
+        }
+        if (mSpanCount == mSpanStrings.length) {
+            int[] spans = new int[mSpans.length * 2];
+            System.arraycopy(mSpans, 0, spans, 0, mSpans.length);
+            mSpans = spans;
+            String[] strings = new String[mSpanStrings.length * 2];
+            System.arraycopy(mSpanStrings, 0, strings, 0, mSpanStrings.length);
+            mSpanStrings = strings;
+        }
+        int offset = mSpanCount * RenderedContent.SPAN_FIELDS;
+        mSpans[offset] = type;
+        mSpans[offset + 1] = start;
+        mSpans[offset + 2] = end;
+        mSpans[offset + 3] = argument;
+        mSpanStrings[mSpanCount] = string;
+        mSpanCount += 1;
+    }
+
+    /**
+     * An element that has been opened and not yet closed.
+     */
+    private static class Element {
+        public Element(int tag, int start) {
+            this.tag = tag;
+            this.start = start;
+        }
+
+        public final int tag;
+        /**
+         * Where the element's text starts.
+         */
+        public final int start;
+        /**
+         * For h1-h6, the level from 0.
+         */
+        public int level;
+        /**
+         * For a, the link.
+         */
+        public String href;
+        /**
+         * For ol, the number of items so far.
+         */
+        public int items;
+    }
+}
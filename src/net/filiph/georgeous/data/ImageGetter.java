@@ -1,18 +1,30 @@
 package net.filiph.georgeous.data;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.net.MalformedURLException;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
-
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.filiph.georgeous.R;
+import net.filiph.georgeous.background.HostLimitedExecutor;
+
+import android.content.ContentResolver;
+import android.content.Context;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.Environment;
@@ -25,19 +37,55 @@ import android.util.Log;
 public class ImageGetter implements ImageGetterWithManageSpace {
     private static final String TAG = "ImageGetter";
 
-    private static final long MAX_SIZE_OF_CACHE = 5000000; // 5MB self-imposed
-                                                           // quota
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Subdirectory of getCacheDir() for the image cache on internal storage.
+     */
+    private static final String INTERNAL_CACHE_DIR = "images";
+
+    /**
+     * Maximum number of images prefetch() downloads at the same time.
+     */
+    private static final int MAX_PARALLEL_IMAGE_FETCHES = 6;
+
+    /**
+     * Maximum number of images prefetch() downloads from the same host at the same time.
+     */
+    private static final int MAX_PARALLEL_IMAGE_FETCHES_PER_HOST = 4;
+
+    /**
+     * The downloads in progress, by URL.
+     */
+    private static final Map<String, Download> sDownloadsInFlight = new HashMap<String, Download>();
+
+    /**
+     * Matches the src attribute of an img tag, quoted with " (group 1), ' (group 2), or not at all
+     * (group 3).
+     */
+    private static final Pattern IMG_SRC_PATTERN = Pattern.compile(
+            "<img(?:\\s[^>]*?)?\\ssrc\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\s\"'>]+))",
+            Pattern.CASE_INSENSITIVE);
 
     /**
      * Sets the bounds of the image according to given DisplayMetrics.
      */
     public static void setBounds(BitmapDrawable d, DisplayMetrics metrics) {
         if (d == null) return;
+        setBounds(d, d.getIntrinsicWidth(), d.getIntrinsicHeight(), metrics);
+    }
+
+    /**
+     * Sets the bounds of a Drawable standing in for an image of the given original size, so that
+     * it takes the same space as the image will (see the image manifest in FeedContract).
+     */
+    public static void setBounds(Drawable d, int originalWidth, int originalHeight,
+            DisplayMetrics metrics) {
         int width, height;
-        int originalWidthScaled = (int) (d.getIntrinsicWidth() * metrics.density);
-        int originalHeightScaled = (int) (d.getIntrinsicHeight() * metrics.density);
+        int originalWidthScaled = (int) (originalWidth * metrics.density);
+        int originalHeightScaled = (int) (originalHeight * metrics.density);
         if (originalWidthScaled > metrics.widthPixels) {
-            height = d.getIntrinsicHeight() * metrics.widthPixels / d.getIntrinsicWidth();
+            height = originalHeight * metrics.widthPixels / originalWidth;
             width = metrics.widthPixels;
         } else {
             height = originalHeightScaled;
@@ -50,186 +98,362 @@ public class ImageGetter implements ImageGetterWithManageSpace {
     /**
      * Creates and sets up the ImageGetter.
      * 
-     * @param externalCacheDir
-     *            Directory for caching.
-     * @param resources
-     *            Activity's Resources.
+     * Images are cached on external storage when it's mounted. Otherwise they are cached in a
+     * smaller cache on internal storage, which is moved to external storage once it's back.
+     * 
+     * @param context
+     *            Context for the cache directories and Resources.
      * @param metrics
      *            Activity's DisplayMetrics.
      * @param cachingOnly
      *            True if the ImageGetter is called solely to cache the fetched images, without
      *            intention to display them right away. This allows for some basic optimization.
+     * @param memoryCache
+     *            Cache of decoded images to check before the disk, and to add decoded images to.
+     *            May be null.
      * @throws IllegalStateException
      */
-    public ImageGetter(File externalCacheDir, Resources resources, DisplayMetrics metrics,
-            boolean cachingOnly) throws IllegalStateException {
-        mExternalCacheDir = externalCacheDir;
-        mResources = resources;
+    public ImageGetter(Context context, DisplayMetrics metrics, boolean cachingOnly,
+            BitmapMemoryCache memoryCache) throws IllegalStateException {
+        mResources = context.getResources();
+        mResolver = context.getContentResolver();
         mMetrics = metrics;
         mCachingOnly = cachingOnly;
+        mMemoryCache = memoryCache;
 
-        String state = Environment.getExternalStorageState();
-
-        if (Environment.MEDIA_MOUNTED.equals(state)) {
+        File externalCacheDir = null;
+        if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
             // We can read and write the media
-            mExternalStorageAvailable = mExternalStorageWriteable = true;
-        } else if (Environment.MEDIA_MOUNTED_READ_ONLY.equals(state)) {
-            // We can only read the media
-            mExternalStorageAvailable = true;
-            mExternalStorageWriteable = false;
-        } else {
-            // Something else is wrong. It may be one of many other states, but
-            // all we need
-            // to know is we can neither read nor write
-            mExternalStorageAvailable = mExternalStorageWriteable = false;
-        }
-
-        if (mExternalStorageAvailable && mExternalCacheDir != null) {
-            cacheFilenames = new HashMap<String, String>();
-            String[] filenames = mExternalCacheDir.list();
-            for (String filename : filenames) {
-                String hash = filename.replaceFirst("[.][^.]+$", "");
-                cacheFilenames.put(hash, filename);
+            externalCacheDir = context.getExternalCacheDir();
+        }
+        File internalCacheDir = new File(context.getCacheDir(), INTERNAL_CACHE_DIR);
+
+        if (externalCacheDir != null) {
+            mCache = DiskLruImageCache.getInstance(externalCacheDir);
+            mMaxCacheSize = mResources.getInteger(R.integer.image_cache_max_size_kb) * 1000L;
+            if (new File(internalCacheDir, DiskLruImageCache.JOURNAL_FILE).exists()) {
+                // Images cached while external storage was away.
+                DiskLruImageCache.getInstance(internalCacheDir).moveAllTo(mCache);
             }
+        } else if (internalCacheDir.isDirectory() || internalCacheDir.mkdirs()) {
+            mCache = DiskLruImageCache.getInstance(internalCacheDir);
+            mMaxCacheSize =
+                    mResources.getInteger(R.integer.image_internal_cache_max_size_kb) * 1000L;
         }
 
-        if (cachingOnly && !mExternalStorageWriteable) {
+        if (cachingOnly && mCache == null) {
             throw new IllegalStateException(
-                    "Trying to create ImageGetter for caching when external "
-                            + "storage is unavailable.");
+                    "Trying to create ImageGetter for caching when no storage is available.");
         }
     }
 
-    boolean mExternalStorageAvailable = false;
-    boolean mExternalStorageWriteable = false;
-
     /**
      * Whether or not to load images from web when they are not available cached. Normally set to
      * true, but can be set to false when caller uses ImageGetter to cache images (and so doesn't
      * need to show them).
      */
     final boolean mCachingOnly;
-    File mExternalCacheDir;
 
     Resources mResources;
     DisplayMetrics mMetrics;
 
     /**
-     * A Map of image URL hashes and the images respective filenames in the cache.
+     * For recording what prefetch() learns about the images in the image manifest.
      */
-    HashMap<String, String> cacheFilenames;
+    final ContentResolver mResolver;
+
+    /**
+     * The images cached on external or (if that's unavailable) internal storage, shared by all
+     * ImageGetters. Null when neither is available.
+     */
+    DiskLruImageCache mCache;
+
+    /**
+     * Self-imposed quota of mCache, configured in res/values/integers.xml.
+     */
+    long mMaxCacheSize;
+
+    final BitmapMemoryCache mMemoryCache;
+
+    /**
+     * Number of times getDrawable() returned null.
+     */
+    int mMissingImages = 0;
 
     @Override
     public Drawable getDrawable(String url) {
-        BitmapDrawable bmp = null;
+        if (mCachingOnly && mCache.get(url) != null) {
+            // Already cached, and nobody is going to look at it. No need to decode it.
+            return null;
+        }
+        BitmapDrawable bmp = getCachedDrawable(url);
+        if (bmp != null) {
+            return bmp;
+        }
 
-        if (mExternalStorageAvailable && mExternalCacheDir != null) {
-            bmp = getBitmapFromCache(url);
+        // Not in the caches.
+        try {
+            // Only used if the image can't be cached: it is then read into memory to be shown
+            // anyway. Otherwise the image is streamed to the cache and decoded from there.
+            ByteArrayOutputStream copy = mCachingOnly ? null : new ByteArrayOutputStream();
+            boolean cached = download(url, copy);
+            if (cached && !mCachingOnly) {
+                // Now that we have the file offline, build the drawable.
+                bmp = getBitmapFromCache(url);
+            } else if (!mCachingOnly) {
+                bmp = decodeBytes(copy.toByteArray());
+            }
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            mMissingImages += 1;
+            return null; // TODO: return a default X pic?
+        } catch (IOException e) {
+            e.printStackTrace();
+            mMissingImages += 1;
+            return null; // TODO: return a default X pic?
         }
 
-        if (bmp == null) {
-            // Drawable not in cache.
-            try {
-                InputStream in = new java.net.URL(url).openStream();
-                boolean cached = cacheImageStream(in, url);
-                in.close();
-                if (cached && !mCachingOnly) {
-                    // Now that we have the file offline, build the drawable.
-                    bmp = getBitmapFromCache(url);
-                } else {
-                    if (!mCachingOnly) {
-                        // Try again without caching.
-                        in = new java.net.URL(url).openStream();
-                        bmp = new BitmapDrawable(mResources, new PatchInputStream(in));
-                        in.close();
-                    }
-                }
-            } catch (MalformedURLException e) {
-                e.printStackTrace();
-                return null; // TODO: return a default X pic?
-            } catch (IOException e) {
-                e.printStackTrace();
-                return null; // TODO: return a default X pic?
+        if (bmp != null) {
+            setBounds(bmp);
+            if (mMemoryCache != null && bmp.getBitmap() != null) {
+                mMemoryCache.put(url, mMetrics.widthPixels, bmp.getBitmap());
             }
+        } else if (!mCachingOnly) {
+            mMissingImages += 1;
         }
+        return bmp;
+    }
 
+    /**
+     * Like getDrawable(), but never downloads: returns null if the image is in neither the memory
+     * nor the disk cache (or can't be decoded).
+     */
+    public BitmapDrawable getCachedDrawable(String url) {
+        if (mMemoryCache != null) {
+            Bitmap bitmap = mMemoryCache.get(url, mMetrics.widthPixels);
+            if (bitmap != null) {
+                BitmapDrawable bmp = new BitmapDrawable(mResources, bitmap);
+                setBounds(bmp);
+                return bmp;
+            }
+        }
+        if (mCache == null) {
+            return null;
+        }
+        BitmapDrawable bmp = getBitmapFromCache(url);
         if (bmp != null) {
             setBounds(bmp);
-            // TODO: save the bounds somewhere so we can invoke them when
-            // creating a blank image?
+            if (mMemoryCache != null && bmp.getBitmap() != null) {
+                mMemoryCache.put(url, mMetrics.widthPixels, bmp.getBitmap());
+            }
         }
         return bmp;
     }
 
     /**
-     * This method deletes cached files over quota.
+     * Returns true if getDrawable() couldn't get some of the images it was asked for (e.g. when
+     * offline), so whatever was rendered with this ImageGetter is missing them.
      */
-    @Override
-    public void manageSpace() {
-        if (mExternalStorageAvailable && mExternalCacheDir != null) {
-            cacheFilenames = new HashMap<String, String>();
-            File[] files = mExternalCacheDir.listFiles();
-            Arrays.sort(files, new Comparator<File>() {
-                @Override
-                public int compare(File lhs, File rhs) {
-                    // Sort files by lastModified, descending.
-                    return -Long.valueOf(lhs.lastModified()).compareTo(rhs.lastModified());
-                }
-            });
-            long cummulativeSize = 0;
-            for (int i = 0; i < files.length; i++) {
-                File f = files[i];
-                long fileSize = f.length();
-                cummulativeSize += fileSize;
-                if (cummulativeSize > MAX_SIZE_OF_CACHE) {
-                    Log.v(TAG, "Deleting file " + f.getAbsolutePath());
-                    f.delete();
-                    cummulativeSize -= fileSize;
-                }
+    public boolean hasMissingImages() {
+        return mMissingImages > 0;
+    }
+
+    /**
+     * Downloads the images of the article (from its image manifest) into the cache, in parallel,
+     * and returns when they are all done. Later getDrawable() calls (by any ImageGetter) then
+     * find them in the cache instead of downloading them one after another.
+     * 
+     * The size of each cached image is recorded in the manifest, so that BlankImageGetter can
+     * reserve the right space for it next time.
+     */
+    public void prefetch(List<ArticleImage> images) {
+        if (mCache == null) {
+            return;
+        }
+        List<String> urls = new ArrayList<String>();
+        for (ArticleImage image : images) {
+            if (urls.contains(image.url)) {
+                continue;
+            }
+            File file = mCache.get(image.url);
+            if (file == null) {
+                urls.add(image.url);
+            } else if (image.cache_state != FeedContract.IMAGE_CACHED
+                    || image.width == ArticleImage.UNKNOWN_SIZE) {
+                // Cached by an older version, or while this article wasn't in the manifest yet.
+                recordCachedImage(image.url, file);
             }
+        }
+        if (urls.isEmpty()) {
+            return;
+        }
 
+        final CountDownLatch done = new CountDownLatch(urls.size());
+        ExecutorService pool =
+                Executors.newFixedThreadPool(Math.min(urls.size(), MAX_PARALLEL_IMAGE_FETCHES));
+        HostLimitedExecutor executor =
+                new HostLimitedExecutor(pool, MAX_PARALLEL_IMAGE_FETCHES_PER_HOST);
+        try {
+            for (final String url : urls) {
+                executor.execute(getHost(url), new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (download(url, null)) {
+                                File file = mCache.get(url);
+                                if (file != null) {
+                                    recordCachedImage(url, file);
+                                }
+                            }
+                        } catch (IOException e) {
+                            // getDrawable() will try again.
+                            Log.w(TAG, "Could not prefetch " + url + ": " + e.getMessage());
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            }
+            done.await();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while prefetching images.");
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdown();
         }
     }
 
     /**
-     * Tries to find the image in the cache.
+     * Returns the src of each &lt;img&gt; in the HTML, in order.
      */
-    private BitmapDrawable getBitmapFromCache(String url) {
-        String hash = getUrlHash(url);
+    static List<String> extractImageUrls(String html) {
+        List<String> urls = new ArrayList<String>();
+        Matcher matcher = IMG_SRC_PATTERN.matcher(html);
+        while (matcher.find()) {
+            String url = matcher.group(1);
+            if (url == null) {
+                url = matcher.group(2) != null ? matcher.group(2) : matcher.group(3);
+            }
+            // HtmlConverter passes the attribute value unescaped.
+            urls.add(HtmlConverter.decodeEntities(url));
+        }
+        return urls;
+    }
+
+    /**
+     * Reads the size of the cached image (without decoding it) and saves it to the image manifest.
+     */
+    private void recordCachedImage(String url, File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (options.outWidth <= 0) {
+            return;
+        }
+        FeedContract.setImageCached(mResolver, url, options.outWidth, options.outHeight);
+    }
 
-        assert (cacheFilenames != null);
+    private static String getHost(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * This method deletes the least recently used cached files over quota.
+     */
+    @Override
+    public void manageSpace() {
+        if (mCache != null) {
+            mCache.trimToSize(mMaxCacheSize);
+        }
+    }
 
-        if (cacheFilenames.containsKey(hash)) {
-            String filename = cacheFilenames.get(hash);
-            File file = new File(mExternalCacheDir, filename);
-            assert (file.exists()); // Should exist since it's in the HashMap created moments ago.
-            return new BitmapDrawable(mResources, file.getAbsolutePath());
+    /**
+     * Tries to find the image in the cache.
+     */
+    private BitmapDrawable getBitmapFromCache(String url) {
+        assert (mCache != null);
+
+        File file = mCache.get(url);
+        if (file != null) {
+            BitmapDrawable bmp = decodeFile(file);
+            if (bmp == null) {
+                // Corrupt. Remove it, so that it is downloaded again.
+                Log.w(TAG, "Could not decode cached image " + url + ". Removing it.");
+                mCache.remove(url);
+            }
+            return bmp;
         } else {
-            // Did not find the cashed file.
+            // Did not find the cached file.
             return null;
         }
     }
 
     /**
-     * Extracts the filename extension from the url.
+     * Decodes the image file, downsampled to about the size it will be shown at.
+     * 
+     * @return The image, or null if it could not be decoded.
      */
-    private String getExtensionFromUrl(String url) {
-        return "image"; // Let the BitmapImageFactory do the work of recognizing
-                        // file type. We don't need an extension for that.
+    private BitmapDrawable decodeFile(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (options.outWidth <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = getSampleSize(options.outWidth);
+        return toDrawable(BitmapFactory.decodeFile(file.getAbsolutePath(), options),
+                options.inSampleSize);
     }
 
     /**
-     * Constructs the filename for the local cache file of the image at the given url.
+     * Like decodeFile(), for an image we couldn't cache.
      */
-    private String getRelativeCacheFilename(String url) {
-        return getUrlHash(url) + "." + getExtensionFromUrl(url);
+    private BitmapDrawable decodeBytes(byte[] data) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0) {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = getSampleSize(options.outWidth);
+        return toDrawable(BitmapFactory.decodeByteArray(data, 0, data.length, options),
+                options.inSampleSize);
     }
 
     /**
-     * Creates the hash to use for the cache filename.
+     * Returns the largest power of two to divide the image's width by, so that it is still at
+     * least as wide as it will be shown (see setBounds()).
      */
-    private String getUrlHash(String url) {
-        return Integer.toHexString(url.hashCode());
+    private int getSampleSize(int originalWidth) {
+        int shownWidth = Math.min((int) (originalWidth * mMetrics.density), mMetrics.widthPixels);
+        int sampleSize = 1;
+        if (shownWidth <= 0) {
+            // Unknown metrics.
+            return sampleSize;
+        }
+        while (originalWidth / (sampleSize * 2) >= shownWidth) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Wraps the bitmap decoded with the given sample size. The bitmap's density is lowered by the
+     * same factor, so that its intrinsic size (and so the size it's shown at) stays that of the
+     * original image.
+     */
+    private BitmapDrawable toDrawable(Bitmap bitmap, int sampleSize) {
+        if (bitmap == null) {
+            return null;
+        }
+        bitmap.setDensity(Math.max(1, mResources.getDisplayMetrics().densityDpi / sampleSize));
+        return new BitmapDrawable(mResources, bitmap);
     }
 
     /**
@@ -241,60 +465,121 @@ public class ImageGetter implements ImageGetterWithManageSpace {
     }
 
     /**
-     * Reads from the stream and saves it to the local filesystem.
+     * Downloads the image into the cache. If the image is already being downloaded (by any
+     * ImageGetter in the process), waits for that download instead of starting another one.
      * 
-     * @return True on success, false on failure.
+     * @param copy
+     *            If not null, and the image couldn't be cached, the image is written here.
+     * @return True on success, false if the image couldn't be cached.
      */
-    private boolean cacheImageStream(InputStream in, String url) {
-        if (!mExternalStorageAvailable || !mExternalStorageWriteable || mExternalCacheDir == null) {
-            return false;
+    private boolean download(String url, ByteArrayOutputStream copy) throws IOException {
+        Download download;
+        boolean ours = false;
+        synchronized (sDownloadsInFlight) {
+            download = sDownloadsInFlight.get(url);
+            if (download == null) {
+                download = new Download();
+                sDownloadsInFlight.put(url, download);
+                ours = true;
+            }
+        }
+        if (!ours) {
+            boolean cached = download.await();
+            if (cached || copy == null) {
+                return cached;
+            }
+            // The other download couldn't cache the image, and we need its bytes.
+            return fetch(url, copy);
         }
-        try {
-            final File file = new File(mExternalCacheDir, getRelativeCacheFilename(url));
-            final OutputStream output = new FileOutputStream(file);
-            try {
-                try {
-                    final byte[] buffer = new byte[1024];
-                    int read;
 
-                    while ((read = in.read(buffer)) != -1) {
-                        output.write(buffer, 0, read);
-                    }
+        boolean cached = false;
+        try {
+            // Another download may have finished between the caller's cache miss and our
+            // registering this one.
+            cached = mCache != null && mCache.get(url) != null;
+            if (!cached) {
+                cached = fetch(url, copy);
+            }
+        } finally {
+            synchronized (sDownloadsInFlight) {
+                sDownloadsInFlight.remove(url);
+            }
+            download.finish(cached);
+        }
+        return cached;
+    }
 
-                    output.flush();
-                } finally {
-                    output.close();
+    /**
+     * Reads the image from the network into the cache. If there is no cache, or the image can't
+     * be stored in it (e.g. the storage is full), the image is read into copy instead (if not
+     * null). In the latter case, it is downloaded a second time: the first download isn't kept
+     * in memory just in case, since the cache almost always works.
+     * 
+     * @return True if the image was cached.
+     */
+    private boolean fetch(String url, ByteArrayOutputStream copy) throws IOException {
+        if (mCache != null) {
+            InputStream in = new URL(url).openStream();
+            try {
+                if (cacheImageStream(in, url)) {
+                    return true;
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-                return false;
+            } finally {
+                in.close();
             }
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+        }
+        if (copy != null) {
+            InputStream in = new URL(url).openStream();
+            try {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    copy.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads from the stream and saves it to the local filesystem.
+     * 
+     * @return True on success, false on failure.
+     */
+    private boolean cacheImageStream(InputStream in, String url) {
+        if (mCache == null) {
             return false;
         }
-        cacheFilenames.put(getUrlHash(url), getRelativeCacheFilename(url));
-        return true;
+        return mCache.put(url, in);
     }
 
     /**
-     * Fixing BitmapFactory.decodeStream() as per
-     * https://code.google.com/p/android/issues/detail?id=6066
+     * A download in progress, which other threads that want the same image can wait for.
      */
-    private class PatchInputStream extends FilterInputStream {
-        public PatchInputStream(InputStream in) {
-            super(in);
-        }
-
-        @Override
-        public long skip(long n) throws IOException {
-            long m = 0L;
-            while (m < n) {
-                long _m = in.skip(n - m);
-                if (_m == 0L) break;
-                m += _m;
+    private static class Download {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile boolean mCached = false;
+
+        /**
+         * Waits for the download to finish.
+         * 
+         * @return True if the image was cached.
+         */
+        public boolean await() throws InterruptedIOException {
+            try {
+                mDone.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a download.");
             }
-            return m;
+            return mCached;
+        }
+
+        public void finish(boolean cached) {
+            mCached = cached;
+            mDone.countDown();
         }
     }
 }
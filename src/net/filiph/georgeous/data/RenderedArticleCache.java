@@ -0,0 +1,91 @@
+package net.filiph.georgeous.data;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.util.LruCache;
+
+/**
+ * A process-wide cache of articles rendered for display (the Spanned built from RenderedContent,
+ * with placeholders for the images), so that showing an article again (after rotation, or going
+ * back to it) skips reading and building it altogether.
+ *
+ * Articles are keyed by id, content version (the updated timestamp) and the width they were
+ * rendered for, since the placeholders are sized to it. The cache keeps only a few articles and
+ * gives them up when the system asks for memory.
+ */
+public class RenderedArticleCache implements ComponentCallbacks2 {
+    /**
+     * Number of rendered articles kept.
+     */
+    private static final int MAX_ARTICLES = 8;
+
+    private static RenderedArticleCache sInstance;
+
+    /**
+     * Returns the cache, creating it on the first call.
+     */
+    public static synchronized RenderedArticleCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new RenderedArticleCache();
+            context.getApplicationContext().registerComponentCallbacks(sInstance);
+        }
+        return sInstance;
+    }
+
+    private RenderedArticleCache() {
+    }
+
+    private final LruCache<String, CharSequence> mCache = new LruCache<String, CharSequence>(
+            MAX_ARTICLES);
+
+    private static String getKey(long articleId, long updatedTimestamp, int width) {
+        return articleId + "@" + updatedTimestamp + "@" + width;
+    }
+
+    /**
+     * Returns the article as rendered for the given width, or null if it's not in the cache.
+     */
+    public CharSequence get(long articleId, long updatedTimestamp, int width) {
+        return mCache.get(getKey(articleId, updatedTimestamp, width));
+    }
+
+    public void put(long articleId, long updatedTimestamp, int width, CharSequence content) {
+        mCache.put(getKey(articleId, updatedTimestamp, width), content);
+    }
+
+    public int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    public int getMissCount() {
+        return mCache.missCount();
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        // The articles are keyed by width, so they don't go stale.
+    }
+
+    @Override
+    public void onLowMemory() {
+        mCache.evictAll();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_BACKGROUND) {
+            // Whatever is still visible has its own copy of the text.
+            mCache.evictAll();
+        }
+    }
+
+    @Override
+    public String toString() {
+        int hits = getHitCount();
+        int misses = getMissCount();
+        return "RenderedArticleCache[size=" + mCache.size() + "/" + mCache.maxSize() + ", hits="
+                + hits + ", misses=" + misses + ", hitRate="
+                + (hits + misses == 0 ? 0 : 100 * hits / (hits + misses)) + "%]";
+    }
+}
@@ -0,0 +1,280 @@
+package net.filiph.georgeous.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import android.graphics.Typeface;
+import android.graphics.drawable.Drawable;
+import android.text.Html;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.BulletSpan;
+import android.text.style.ImageSpan;
+import android.text.style.QuoteSpan;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StyleSpan;
+import android.text.style.TypefaceSpan;
+import android.text.style.URLSpan;
+import android.text.style.UnderlineSpan;
+
+/**
+ * An article converted by HtmlConverter: the plain text, and a table of the spans on it (styles,
+ * links and image references). It is stored in the rendered column, so that showing an article
+ * doesn't need to parse its HTML.
+ *
+ * The stored form is FORMAT_MARKER, FORMAT_VERSION, and a zlib stream of: the text (see
+ * writeString()), the number of spans, and for each span its type (1 byte), start and length (4
+ * bytes each), plus the heading level (1 byte) or the link or image URL (a string) for the types
+ * that have one.
+ */
+public class RenderedContent {
+    private static final String CHARSET = "UTF-8";
+
+    private static final byte FORMAT_MARKER = 0x02;
+
+    /**
+     * Version of the stored form, and of what HtmlConverter makes of the HTML. Increase it when
+     * either changes: articles stored with another version are then converted again.
+     */
+    private static final byte FORMAT_VERSION = 2;
+
+    /**
+     * Relative sizes of h1-h6, same as Html.fromHtml().
+     */
+    static final float[] HEADING_SIZES = { 1.5f, 1.4f, 1.3f, 1.2f, 1.1f, 1f };
+
+    static final int SPAN_BOLD = 1;
+    static final int SPAN_ITALIC = 2;
+    static final int SPAN_UNDERLINE = 3;
+    static final int SPAN_MONOSPACE = 4;
+    /**
+     * A link. The string is its URL.
+     */
+    static final int SPAN_LINK = 5;
+    /**
+     * The size of h1-h6. The argument is the level from 0.
+     */
+    static final int SPAN_HEADING = 6;
+    static final int SPAN_QUOTE = 7;
+    static final int SPAN_BULLET = 8;
+    /**
+     * An image, in place of one U+FFFC character. The string is the image URL.
+     */
+    static final int SPAN_IMAGE = 9;
+
+    /**
+     * Number of ints in spans per span: type, start, end and argument.
+     */
+    static final int SPAN_FIELDS = 4;
+
+    /**
+     * Returns the content from its stored form, or null if there is none, or it was stored by
+     * another version (or is corrupt). The article then needs to be converted again.
+     */
+    public static RenderedContent decode(byte[] stored) {
+        if (stored == null || stored.length < 2 || stored[0] != FORMAT_MARKER
+                || stored[1] != FORMAT_VERSION) {
+            return null;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            DataInputStream in =
+                    new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(stored,
+                            2, stored.length - 2), inflater));
+            String text = readString(in);
+            int spanCount = in.readInt();
+            if (spanCount < 0) {
+                return null;
+            }
+            int[] spans = new int[spanCount * SPAN_FIELDS];
+            String[] strings = new String[spanCount];
+            for (int i = 0; i < spanCount; i++) {
+                int type = in.readByte();
+                int start = in.readInt();
+                int end = start + in.readInt();
+                if (start < 0 || end < start || end > text.length()) {
+                    return null;
+                }
+                int argument = 0;
+                if (type == SPAN_HEADING) {
+                    argument = in.readByte();
+                    if (argument < 0 || argument >= HEADING_SIZES.length) {
+                        return null;
+                    }
+                } else if (type == SPAN_LINK || type == SPAN_IMAGE) {
+                    strings[i] = readString(in);
+                }
+                spans[i * SPAN_FIELDS] = type;
+                spans[i * SPAN_FIELDS + 1] = start;
+                spans[i * SPAN_FIELDS + 2] = end;
+                spans[i * SPAN_FIELDS + 3] = argument;
+            }
+            return new RenderedContent(text, spanCount, spans, strings);
+        } catch (IOException e) {
+            // Corrupt.
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Writes a string as its length in UTF-8 (4 bytes) and the UTF-8. Unlike writeUTF(), this
+     * isn't limited to 64KB.
+     */
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] utf8 = string.getBytes(CHARSET);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Negative string length.");
+        }
+        byte[] utf8 = new byte[length];
+        in.readFully(utf8);
+        return new String(utf8, CHARSET);
+    }
+
+    /**
+     * @param spans
+     *            SPAN_FIELDS ints for each span. May be longer than needed.
+     * @param strings
+     *            The string of each span, or null. May be longer than needed.
+     */
+    RenderedContent(String text, int spanCount, int[] spans, String[] strings) {
+        mText = text;
+        mSpanCount = spanCount;
+        mSpans = spans;
+        mStrings = strings;
+    }
+
+    private final String mText;
+    private final int mSpanCount;
+    private final int[] mSpans;
+    private final String[] mStrings;
+
+    /**
+     * Returns the URLs of the images, in the order they appear in the text.
+     */
+    public List<String> getImageUrls() {
+        List<String> urls = new ArrayList<String>();
+        for (int i = 0; i < mSpanCount; i++) {
+            if (mSpans[i * SPAN_FIELDS] == SPAN_IMAGE) {
+                urls.add(mStrings[i]);
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Returns the stored form of the content.
+     */
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(mText.length() / 4);
+        bytes.write(FORMAT_MARKER);
+        bytes.write(FORMAT_VERSION);
+        Deflater deflater = new Deflater();
+        try {
+            DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes, deflater));
+            writeString(out, mText);
+            out.writeInt(mSpanCount);
+            for (int i = 0; i < mSpanCount; i++) {
+                int type = mSpans[i * SPAN_FIELDS];
+                int start = mSpans[i * SPAN_FIELDS + 1];
+                out.writeByte(type);
+                out.writeInt(start);
+                out.writeInt(mSpans[i * SPAN_FIELDS + 2] - start);
+                if (type == SPAN_HEADING) {
+                    out.writeByte(mSpans[i * SPAN_FIELDS + 3]);
+                } else if (type == SPAN_LINK || type == SPAN_IMAGE) {
+                    writeString(out, mStrings[i]);
+                }
+            }
+            // Finishes the zlib stream.
+            out.close();
+        } catch (IOException e) {
+            // A ByteArrayOutputStream doesn't throw.
+            throw new AssertionError(e);
+        } finally {
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Builds the Spanned for the TextView.
+     *
+     * @param imageGetter
+     *            Provides the Drawable for each image. Images it returns null for are left out.
+     *            May be null, which leaves out all images.
+     */
+    public Spanned toSpanned(Html.ImageGetter imageGetter) {
+        SpannableStringBuilder result = new SpannableStringBuilder(mText);
+        int[] missingImages = null;
+        int missing = 0;
+        for (int i = 0; i < mSpanCount; i++) {
+            int start = mSpans[i * SPAN_FIELDS + 1];
+            int end = mSpans[i * SPAN_FIELDS + 2];
+            Object span;
+            switch (mSpans[i * SPAN_FIELDS]) {
+                case SPAN_BOLD:
+                    span = new StyleSpan(Typeface.BOLD);
+                    break;
+                case SPAN_ITALIC:
+                    span = new StyleSpan(Typeface.ITALIC);
+                    break;
+                case SPAN_UNDERLINE:
+                    span = new UnderlineSpan();
+                    break;
+                case SPAN_MONOSPACE:
+                    span = new TypefaceSpan("monospace");
+                    break;
+                case SPAN_LINK:
+                    span = new URLSpan(mStrings[i]);
+                    break;
+                case SPAN_HEADING:
+                    span = new RelativeSizeSpan(HEADING_SIZES[mSpans[i * SPAN_FIELDS + 3]]);
+                    break;
+                case SPAN_QUOTE:
+                    span = new QuoteSpan();
+                    break;
+                case SPAN_BULLET:
+                    span = new BulletSpan();
+                    break;
+                case SPAN_IMAGE:
+                    Drawable drawable =
+                            imageGetter == null ? null : imageGetter.getDrawable(mStrings[i]);
+                    if (drawable == null) {
+                        if (missingImages == null) {
+                            missingImages = new int[mSpanCount];
+                        }
+                        missingImages[missing++] = start;
+                        continue;
+                    }
+                    span = new ImageSpan(drawable, mStrings[i]);
+                    break;
+                default:
+                    continue;
+            }
+            result.setSpan(span, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        // Otherwise the U+FFFC in place of the image would show. Images are in the order of the
+        // text, so going backwards keeps the positions right.
+        for (int i = missing - 1; i >= 0; i--) {
+            result.delete(missingImages[i], missingImages[i] + 1);
+        }
+        return result;
+    }
+}